@@ -0,0 +1,277 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.benchmark;
+
+import net.raphimc.javadowngrader.util.Constants;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A fixed corpus of generated Java 9 - 21 classes which exercise the most common downgrade paths.<br>
+ * The generated code is straight-line so the classes don't need any stack map frames.
+ */
+public final class BenchmarkCorpus {
+
+    public static final int MIN_VERSION = 9;
+    public static final int MAX_VERSION = 21;
+
+    private static final String STRING_CONCAT_BSM_DESC = "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/String;[Ljava/lang/Object;)Ljava/lang/invoke/CallSite;";
+    private static final Handle STRING_CONCAT_BSM = new Handle(Opcodes.H_INVOKESTATIC, "java/lang/invoke/StringConcatFactory", "makeConcatWithConstants", STRING_CONCAT_BSM_DESC, false);
+    private static final Handle METAFACTORY = new Handle(Opcodes.H_INVOKESTATIC, "java/lang/invoke/LambdaMetafactory", "metafactory", Constants.METAFACTORY_DESC, false);
+    private static final Handle OBJECT_METHODS_BSM = new Handle(Opcodes.H_INVOKESTATIC, "java/lang/runtime/ObjectMethods", "bootstrap", Constants.OBJECTMETHODS_BOOTSTRAP_DESC, false);
+
+    public enum Kind {
+        RECORD(16),
+        STRING_CONCAT(9),
+        LIST_OF(9),
+        LAMBDA_HANDLES(9),
+        LARGE_METHOD(9);
+
+        private final int minVersion;
+
+        Kind(final int minVersion) {
+            this.minVersion = minVersion;
+        }
+
+        public int getMinVersion() {
+            return this.minVersion;
+        }
+    }
+
+    /**
+     * @param kind The kind of classes
+     * @return The class files of the given kind for every supported Java version
+     */
+    public static List<byte[]> generate(final Kind kind) {
+        final List<byte[]> classes = new ArrayList<>();
+        for (int version = kind.getMinVersion(); version <= MAX_VERSION; version++) {
+            classes.add(generate(kind, version));
+        }
+        return classes;
+    }
+
+    /**
+     * @param version The Java version
+     * @return The class files of all kinds which are available in the given Java version
+     */
+    public static List<byte[]> generate(final int version) {
+        final List<byte[]> classes = new ArrayList<>();
+        for (Kind kind : Kind.values()) {
+            if (version >= kind.getMinVersion()) {
+                classes.add(generate(kind, version));
+            }
+        }
+        return classes;
+    }
+
+    public static byte[] generate(final Kind kind, final int version) {
+        final String name = "corpus/" + kind.name().toLowerCase() + "/Java" + version;
+        final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        switch (kind) {
+            case RECORD:
+                generateRecord(cw, name, version);
+                break;
+            case STRING_CONCAT:
+                cw.visit(version + 44, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, "java/lang/Object", null);
+                for (int i = 0; i < 32; i++) {
+                    final MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "concat" + i, "(Ljava/lang/String;IJLjava/lang/Object;)Ljava/lang/String;", null, null);
+                    mv.visitCode();
+                    concat(mv, i);
+                    mv.visitInsn(Opcodes.ARETURN);
+                    mv.visitMaxs(0, 0);
+                    mv.visitEnd();
+                }
+                break;
+            case LIST_OF:
+                cw.visit(version + 44, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, "java/lang/Object", null);
+                for (int i = 0; i < 32; i++) {
+                    final MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "collections" + i, "(Ljava/lang/String;IJLjava/lang/Object;)V", null, null);
+                    mv.visitCode();
+                    collections(mv, version);
+                    mv.visitInsn(Opcodes.RETURN);
+                    mv.visitMaxs(0, 0);
+                    mv.visitEnd();
+                }
+                break;
+            case LAMBDA_HANDLES:
+                cw.visit(version + 44, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, "java/lang/Object", null);
+                for (int i = 0; i < 32; i++) {
+                    final MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "lambdas" + i, "()V", null, null);
+                    mv.visitCode();
+                    lambdas(mv, version);
+                    mv.visitInsn(Opcodes.RETURN);
+                    mv.visitMaxs(0, 0);
+                    mv.visitEnd();
+                }
+                break;
+            case LARGE_METHOD: {
+                cw.visit(version + 44, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, "java/lang/Object", null);
+                final MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "large", "(Ljava/lang/String;IJLjava/lang/Object;)V", null, null);
+                mv.visitCode();
+                for (int i = 0; i < 200; i++) {
+                    mv.visitVarInsn(Opcodes.ALOAD, 0);
+                    mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/String", "length", "()I", false);
+                    mv.visitInsn(Opcodes.POP);
+                    concat(mv, i);
+                    mv.visitInsn(Opcodes.POP);
+                    collections(mv, version);
+                }
+                mv.visitInsn(Opcodes.RETURN);
+                mv.visitMaxs(0, 0);
+                mv.visitEnd();
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown kind " + kind);
+        }
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static void generateRecord(final ClassWriter cw, final String name, final int version) {
+        final String[][] components = {{"id", "I"}, {"name", "Ljava/lang/String;"}, {"values", "Ljava/util/List;"}, {"timestamp", "J"}};
+        cw.visit(version + 44, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER | Opcodes.ACC_RECORD, name, null, "java/lang/Record", null);
+
+        final StringBuilder constructorDesc = new StringBuilder("(");
+        final StringBuilder names = new StringBuilder();
+        final Object[] bsmArgs = new Object[components.length + 2];
+        bsmArgs[0] = Type.getObjectType(name);
+        for (int i = 0; i < components.length; i++) {
+            final String[] component = components[i];
+            cw.visitRecordComponent(component[0], component[1], null).visitEnd();
+            cw.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL, component[0], component[1], null, null).visitEnd();
+            constructorDesc.append(component[1]);
+            names.append(i == 0 ? "" : ";").append(component[0]);
+            bsmArgs[i + 2] = new Handle(Opcodes.H_GETFIELD, name, component[0], component[1], false);
+
+            final MethodVisitor accessor = cw.visitMethod(Opcodes.ACC_PUBLIC, component[0], "()" + component[1], null, null);
+            accessor.visitCode();
+            accessor.visitVarInsn(Opcodes.ALOAD, 0);
+            accessor.visitFieldInsn(Opcodes.GETFIELD, name, component[0], component[1]);
+            accessor.visitInsn(Type.getType(component[1]).getOpcode(Opcodes.IRETURN));
+            accessor.visitMaxs(0, 0);
+            accessor.visitEnd();
+        }
+        bsmArgs[1] = names.toString();
+
+        final MethodVisitor constructor = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", constructorDesc.append(")V").toString(), null, null);
+        constructor.visitCode();
+        constructor.visitVarInsn(Opcodes.ALOAD, 0);
+        constructor.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Record", "<init>", "()V", false);
+        int local = 1;
+        for (String[] component : components) {
+            final Type type = Type.getType(component[1]);
+            constructor.visitVarInsn(Opcodes.ALOAD, 0);
+            constructor.visitVarInsn(type.getOpcode(Opcodes.ILOAD), local);
+            constructor.visitFieldInsn(Opcodes.PUTFIELD, name, component[0], component[1]);
+            local += type.getSize();
+        }
+        constructor.visitInsn(Opcodes.RETURN);
+        constructor.visitMaxs(0, 0);
+        constructor.visitEnd();
+
+        final String self = "L" + name + ";";
+        objectMethod(cw, "toString", "()Ljava/lang/String;", "(" + self + ")Ljava/lang/String;", Opcodes.ARETURN, bsmArgs);
+        objectMethod(cw, "hashCode", "()I", "(" + self + ")I", Opcodes.IRETURN, bsmArgs);
+        objectMethod(cw, "equals", "(Ljava/lang/Object;)Z", "(" + self + "Ljava/lang/Object;)Z", Opcodes.IRETURN, bsmArgs);
+    }
+
+    private static void objectMethod(final ClassWriter cw, final String methodName, final String desc, final String indyDesc, final int returnOpcode, final Object[] bsmArgs) {
+        final MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL, methodName, desc, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        if (Type.getArgumentTypes(desc).length == 1) {
+            mv.visitVarInsn(Opcodes.ALOAD, 1);
+        }
+        mv.visitInvokeDynamicInsn(methodName, indyDesc, OBJECT_METHODS_BSM, bsmArgs);
+        mv.visitInsn(returnOpcode);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /**
+     * Concatenates the parameters of a {@code (String, int, long, Object)} method and leaves the result on the stack.
+     */
+    private static void concat(final MethodVisitor mv, final int index) {
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitVarInsn(Opcodes.ILOAD, 1);
+        mv.visitVarInsn(Opcodes.LLOAD, 2);
+        mv.visitVarInsn(Opcodes.ALOAD, 4);
+        mv.visitInvokeDynamicInsn("makeConcatWithConstants", "(Ljava/lang/String;IJLjava/lang/Object;)Ljava/lang/String;", STRING_CONCAT_BSM, "s=\u0001, i=\u0001, l=\u0001, o=\u0001 #" + index + " \u0002", "constant");
+    }
+
+    /**
+     * Creates collections from the parameters of a {@code (String, int, long, Object)} method using the APIs available in the given version.
+     */
+    private static void collections(final MethodVisitor mv, final int version) {
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitVarInsn(Opcodes.ALOAD, 4);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/util/List", "of", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/util/List;", true);
+        if (version >= 10) {
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/util/List", "copyOf", "(Ljava/util/Collection;)Ljava/util/List;", true);
+        }
+        if (version >= 16) {
+            mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, "java/util/List", "stream", "()Ljava/util/stream/Stream;", true);
+            mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, "java/util/stream/Stream", "toList", "()Ljava/util/List;", true);
+        }
+        mv.visitInsn(Opcodes.POP);
+
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/util/Set", "of", "(Ljava/lang/Object;)Ljava/util/Set;", true);
+        mv.visitInsn(Opcodes.POP);
+
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitVarInsn(Opcodes.ALOAD, 4);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/util/Map", "of", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/util/Map;", true);
+        mv.visitInsn(Opcodes.POP);
+
+        if (version >= 11) {
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/String", "strip", "()Ljava/lang/String;", false);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/String", "isBlank", "()Z", false);
+            mv.visitInsn(Opcodes.POP);
+        }
+    }
+
+    /**
+     * Creates lambdas whose implementation methods are replaced by the downgrader.
+     */
+    private static void lambdas(final MethodVisitor mv, final int version) {
+        final Type function = Type.getMethodType("(Ljava/lang/Object;)Ljava/lang/Object;");
+        lambda(mv, "java/util/function/Function", "apply", function, new Handle(Opcodes.H_INVOKEVIRTUAL, "java/util/Optional", "stream", "()Ljava/util/stream/Stream;", false), "(Ljava/util/Optional;)Ljava/util/stream/Stream;");
+        lambda(mv, "java/util/function/Function", "apply", function, new Handle(Opcodes.H_INVOKESTATIC, "java/util/List", "of", "(Ljava/lang/Object;)Ljava/util/List;", true), "(Ljava/lang/Object;)Ljava/util/List;");
+        lambda(mv, "java/util/function/Function", "apply", function, new Handle(Opcodes.H_INVOKEVIRTUAL, "java/lang/String", "trim", "()Ljava/lang/String;", false), "(Ljava/lang/String;)Ljava/lang/String;");
+        if (version >= 11) {
+            final Type predicate = Type.getMethodType("(Ljava/lang/Object;)Z");
+            lambda(mv, "java/util/function/Predicate", "test", predicate, new Handle(Opcodes.H_INVOKEVIRTUAL, "java/lang/String", "isBlank", "()Z", false), "(Ljava/lang/String;)Z");
+            lambda(mv, "java/util/function/Predicate", "test", predicate, new Handle(Opcodes.H_INVOKEVIRTUAL, "java/util/Optional", "isEmpty", "()Z", false), "(Ljava/util/Optional;)Z");
+        }
+    }
+
+    private static void lambda(final MethodVisitor mv, final String functionalInterface, final String name, final Type samType, final Handle implementation, final String instantiatedDesc) {
+        mv.visitInvokeDynamicInsn(name, "()L" + functionalInterface + ";", METAFACTORY, samType, implementation, Type.getMethodType(instantiatedDesc));
+        mv.visitInsn(Opcodes.POP);
+    }
+
+}
@@ -0,0 +1,169 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.benchmark;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Runs the JMH benchmarks and either saves the results as a baseline or compares them against a saved baseline.<br>
+ * Usage: {@code save <baseline file> [jmh args...]} or {@code compare <baseline file> <threshold percent> [jmh args...]}<br>
+ * The baseline contains the primary score and the normalized allocation rate of every benchmark. The comparison
+ * exits with status 1 if any of them regressed by more than the threshold.
+ */
+public class BenchmarkRunner {
+
+    private static final String ALLOCATION_METRIC = "gc.alloc.rate.norm";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || (!args[0].equals("save") && !args[0].equals("compare")) || (args[0].equals("compare") && args.length < 3)) {
+            System.err.println("Usage: save <baseline file> [jmh args...]");
+            System.err.println("       compare <baseline file> <threshold percent> [jmh args...]");
+            System.exit(2);
+            return;
+        }
+        final boolean save = args[0].equals("save");
+        final Path baselineFile = Paths.get(args[1]);
+        final double threshold = save ? 0 : Double.parseDouble(args[2]);
+        final String[] jmhArgs = Arrays.copyOfRange(args, save ? 2 : 3, args.length);
+
+        final Map<String, Measurement> results = run(jmhArgs);
+        if (save) {
+            write(baselineFile, results);
+            System.out.println("Saved " + results.size() + " measurement(s) to " + baselineFile);
+        } else if (!compare(read(baselineFile), results, threshold)) {
+            System.exit(1);
+        }
+    }
+
+    private static Map<String, Measurement> run(final String[] jmhArgs) throws Exception {
+        final Runner runner = new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(jmhArgs))
+                .addProfiler(GCProfiler.class)
+                .build());
+        final Map<String, Measurement> measurements = new TreeMap<>();
+        for (RunResult runResult : runner.run()) {
+            final String key = key(runResult);
+            final Result<?> primary = runResult.getPrimaryResult();
+            final boolean throughput = runResult.getParams().getMode() == Mode.Throughput;
+            measurements.put(key + "\tscore", new Measurement(primary.getScore(), primary.getScoreUnit(), !throughput));
+            for (Map.Entry<String, Result> entry : runResult.getSecondaryResults().entrySet()) {
+                if (entry.getKey().endsWith(ALLOCATION_METRIC)) {
+                    final Result<?> allocation = entry.getValue();
+                    measurements.put(key + "\t" + ALLOCATION_METRIC, new Measurement(allocation.getScore(), allocation.getScoreUnit(), true));
+                }
+            }
+        }
+        return measurements;
+    }
+
+    private static String key(final RunResult runResult) {
+        final StringBuilder key = new StringBuilder(runResult.getParams().getBenchmark());
+        final Collection<String> paramKeys = runResult.getParams().getParamsKeys();
+        if (!paramKeys.isEmpty()) {
+            final StringJoiner params = new StringJoiner(",", "[", "]");
+            for (String paramKey : paramKeys) {
+                params.add(paramKey + "=" + runResult.getParams().getParam(paramKey));
+            }
+            key.append(params);
+        }
+        return key.toString();
+    }
+
+    private static boolean compare(final Map<String, Measurement> baseline, final Map<String, Measurement> results, final double threshold) {
+        boolean passed = true;
+        System.out.println(String.format("%-90s %15s %15s %9s", "Benchmark", "Baseline", "Current", "Change"));
+        for (Map.Entry<String, Measurement> entry : results.entrySet()) {
+            final Measurement current = entry.getValue();
+            final Measurement previous = baseline.get(entry.getKey());
+            final String name = entry.getKey().replace('\t', ' ');
+            if (previous == null) {
+                System.out.println(String.format("%-90s %15s %15.3f %9s", name, "-", current.score, "new"));
+                continue;
+            }
+            if (!previous.unit.equals(current.unit)) {
+                System.out.println(String.format("%-90s %15s %15s %9s", name, previous.unit, current.unit, "unit"));
+                continue;
+            }
+
+            final double change = previous.score == 0 ? 0 : (current.score - previous.score) / previous.score * 100;
+            final double regression = current.lowerIsBetter ? change : -change;
+            final boolean regressed = regression > threshold;
+            if (regressed) passed = false;
+            System.out.println(String.format("%-90s %15.3f %15.3f %+8.1f%%%s", name, previous.score, current.score, change, regressed ? " REGRESSION" : ""));
+        }
+        for (String key : baseline.keySet()) {
+            if (!results.containsKey(key)) {
+                System.out.println(String.format("%-90s %15.3f %15s %9s", key.replace('\t', ' '), baseline.get(key).score, "-", "missing"));
+            }
+        }
+        System.out.println(passed ? "No regressions above " + threshold + "%" : "Regressions above " + threshold + "% detected");
+        return passed;
+    }
+
+    private static Map<String, Measurement> read(final Path file) throws IOException {
+        final Map<String, Measurement> measurements = new TreeMap<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            final String[] parts = line.split("\t");
+            if (parts.length != 5) throw new IOException("Invalid baseline line: " + line);
+            measurements.put(parts[0] + "\t" + parts[1], new Measurement(Double.parseDouble(parts[2]), parts[3], Boolean.parseBoolean(parts[4])));
+        }
+        return measurements;
+    }
+
+    private static void write(final Path file, final Map<String, Measurement> measurements) throws IOException {
+        final List<String> lines = new ArrayList<>();
+        lines.add("# benchmark\tmetric\tscore\tunit\tlowerIsBetter");
+        for (Map.Entry<String, Measurement> entry : measurements.entrySet()) {
+            final Measurement measurement = entry.getValue();
+            lines.add(entry.getKey() + "\t" + measurement.score + "\t" + measurement.unit + "\t" + measurement.lowerIsBetter);
+        }
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        Files.write(file, lines, StandardCharsets.UTF_8);
+    }
+
+    private static class Measurement {
+
+        private final double score;
+        private final String unit;
+        private final boolean lowerIsBetter;
+
+        private Measurement(final double score, final String unit, final boolean lowerIsBetter) {
+            this.score = score;
+            this.unit = unit;
+            this.lowerIsBetter = lowerIsBetter;
+        }
+
+    }
+
+}
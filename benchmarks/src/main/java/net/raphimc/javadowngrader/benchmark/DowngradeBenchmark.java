@@ -0,0 +1,92 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.benchmark;
+
+import net.lenni0451.classtransform.TransformerManager;
+import net.lenni0451.classtransform.utils.tree.BasicClassProvider;
+import net.raphimc.javadowngrader.JavaDowngrader;
+import net.raphimc.javadowngrader.RuntimeDepCollector;
+import net.raphimc.javadowngrader.impl.classtransform.JavaDowngraderTransformer;
+import net.raphimc.javadowngrader.transformer.DowngradeResult;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of downgrading the {@link BenchmarkCorpus} to Java 8.<br>
+ * Every invocation downgrades one class of the selected kind, cycling through all Java versions of the corpus.
+ * {@link #parse()} is the baseline cost of reading a class which is included in every other benchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DowngradeBenchmark {
+
+    @Param({"RECORD", "STRING_CONCAT", "LIST_OF", "LAMBDA_HANDLES", "LARGE_METHOD"})
+    private BenchmarkCorpus.Kind kind;
+
+    private List<byte[]> classes;
+    private JavaDowngraderTransformer transformer;
+    private int index;
+
+    @Setup
+    public void setup() {
+        this.classes = BenchmarkCorpus.generate(this.kind);
+        this.transformer = JavaDowngraderTransformer.builder(new TransformerManager(new BasicClassProvider())).targetVersion(Opcodes.V1_8).build();
+    }
+
+    @Benchmark
+    public ClassNode parse() {
+        return this.read(this.next());
+    }
+
+    @Benchmark
+    public DowngradeResult downgrade() {
+        return JavaDowngrader.downgrade(this.read(this.next()), Opcodes.V1_8);
+    }
+
+    @Benchmark
+    public DowngradeResult downgradeCompiled() {
+        return JavaDowngrader.downgradeCompiled(this.read(this.next()), Opcodes.V1_8, RuntimeDepCollector.NULL);
+    }
+
+    @Benchmark
+    public byte[] transformBytes() {
+        return this.transformer.transform(this.kind.name(), this.next(), true);
+    }
+
+    private byte[] next() {
+        final byte[] bytecode = this.classes.get(this.index);
+        this.index = (this.index + 1) % this.classes.size();
+        return bytecode;
+    }
+
+    private ClassNode read(final byte[] bytecode) {
+        final ClassNode classNode = new ClassNode();
+        new ClassReader(bytecode).accept(classNode, 0);
+        return classNode;
+    }
+
+}
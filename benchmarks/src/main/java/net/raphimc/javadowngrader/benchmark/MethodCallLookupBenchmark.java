@@ -0,0 +1,102 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.benchmark;
+
+import net.raphimc.javadowngrader.transformer.DowngradeResult;
+import net.raphimc.javadowngrader.transformer.DowngradingTransformer;
+import net.raphimc.javadowngrader.transformer.j9.Java10ToJava9;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the method call replacer lookup of {@link DowngradingTransformer} against the previous lookup which
+ * concatenated the owner, name and descriptor of every call into a new string.<br>
+ * Run with the gc profiler and compare {@code gc.alloc.rate.norm} of both benchmarks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MethodCallLookupBenchmark {
+
+    private static final String[][] CALLS = {
+            {"java/lang/String", "length", "()I"},
+            {"java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;"},
+            {"java/util/List", "add", "(Ljava/lang/Object;)Z"},
+            {"java/util/Map", "get", "(Ljava/lang/Object;)Ljava/lang/Object;"},
+            {"java/util/Optional", "get", "()Ljava/lang/Object;"},
+            {"java/util/stream/Collectors", "toList", "()Ljava/util/stream/Collector;"},
+    };
+
+    private final DowngradingTransformer transformer = new Java10ToJava9();
+    private final Map<String, Object> stringKeys = new HashMap<>();
+    private final DowngradeResult result = new DowngradeResult();
+    private ClassNode classNode;
+
+    @Param({"1000"})
+    private int calls;
+
+    @Setup
+    public void setup() {
+        this.stringKeys.put("java/util/List;copyOf(Ljava/util/Collection;)Ljava/util/List;", this);
+        this.stringKeys.put("java/util/Optional;orElseThrow()Ljava/lang/Object;", this);
+        this.stringKeys.put("java/util/stream/Collectors;toUnmodifiableList()Ljava/util/stream/Collector;", this);
+        this.stringKeys.put("java/io/Reader;transferTo", this);
+
+        this.classNode = new ClassNode();
+        this.classNode.visit(Opcodes.V10, Opcodes.ACC_PUBLIC, "Benchmark", null, "java/lang/Object", null);
+        final MethodNode methodNode = new MethodNode(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "run", "()V", null, null);
+        for (int i = 0; i < this.calls; i++) {
+            final String[] call = CALLS[i % CALLS.length];
+            methodNode.instructions.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, call[0], call[1], call[2]));
+        }
+        methodNode.instructions.add(new InsnNode(Opcodes.RETURN));
+        this.classNode.methods.add(methodNode);
+    }
+
+    @Benchmark
+    public void indexLookup() {
+        this.classNode.version = Opcodes.V10;
+        this.transformer.transform(this.classNode, this.result);
+    }
+
+    @Benchmark
+    public void stringKeyLookup(final Blackhole blackhole) {
+        for (MethodNode methodNode : this.classNode.methods) {
+            for (AbstractInsnNode insn : methodNode.instructions.toArray()) {
+                if (insn instanceof MethodInsnNode) {
+                    final MethodInsnNode methodInsn = (MethodInsnNode) insn;
+                    Object replacer = this.stringKeys.get(methodInsn.owner + ';' + methodInsn.name + methodInsn.desc);
+                    if (replacer == null) {
+                        replacer = this.stringKeys.get(methodInsn.owner + ';' + methodInsn.name);
+                    }
+                    blackhole.consume(replacer);
+                }
+            }
+        }
+    }
+
+}
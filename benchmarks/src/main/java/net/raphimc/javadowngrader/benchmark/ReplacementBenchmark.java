@@ -0,0 +1,113 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.benchmark;
+
+import net.raphimc.javadowngrader.JavaDowngrader;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Compares the runtime performance of the code generated by the replacers against the native JDK methods.<br>
+ * Every {@link ReplacementSnippet} is loaded twice: once as compiled and once after being downgraded to Java 8.
+ * Both variants run on the current JVM, so this benchmark has to be run on a JVM which supports the newest snippet.
+ * Run with the gc profiler and compare the score and {@code gc.alloc.rate.norm} of both benchmarks per snippet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplacementBenchmark {
+
+    @Param({
+            "STRING_STRIP", "STRING_STRIP_LEADING", "STRING_STRIP_TRAILING", "STRING_IS_BLANK", "CHARACTER_TO_STRING",
+            "CHAR_SEQUENCE_IS_EMPTY", "LIST_OF", "LIST_OF_ARRAY", "SET_OF", "MAP_OF", "LIST_COPY_OF", "SET_COPY_OF",
+            "MAP_COPY_OF", "STREAM_TO_LIST", "OPTIONAL_IS_EMPTY", "OPTIONAL_OR_ELSE_THROW", "OPTIONAL_STREAM",
+            "OBJECTS_REQUIRE_NON_NULL_ELSE", "MATH_FLOOR_MOD", "INPUT_STREAM_READ_ALL_BYTES", "RUNTIME_VERSION",
+            "STRING_CONCAT", "RECORD_TO_STRING", "RECORD_HASH_CODE"
+    })
+    private ReplacementSnippet snippet;
+
+    private Function<Object, Object> nativeSnippet;
+    private Function<Object, Object> downgradedSnippet;
+    private Object input;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        final int runtimeVersion = runtimeVersion();
+        if (runtimeVersion < this.snippet.getVersion()) {
+            throw new IllegalStateException(this.snippet + " requires Java " + this.snippet.getVersion() + " but the benchmark is running on Java " + runtimeVersion);
+        }
+
+        final byte[] bytecode = this.snippet.generate();
+        this.nativeSnippet = load(bytecode);
+        this.downgradedSnippet = load(downgrade(bytecode));
+        this.input = this.snippet.input();
+    }
+
+    @Benchmark
+    public Object nativeCode() {
+        return this.nativeSnippet.apply(this.input);
+    }
+
+    @Benchmark
+    public Object downgradedCode() {
+        return this.downgradedSnippet.apply(this.input);
+    }
+
+    private static byte[] downgrade(final byte[] bytecode) {
+        final ClassNode classNode = new ClassNode();
+        new ClassReader(bytecode).accept(classNode, 0);
+        JavaDowngrader.downgrade(classNode, Opcodes.V1_8);
+
+        final ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        classNode.accept(writer);
+        return writer.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Function<Object, Object> load(final byte[] bytecode) throws ReflectiveOperationException {
+        final SnippetClassLoader classLoader = new SnippetClassLoader(ReplacementBenchmark.class.getClassLoader());
+        return (Function<Object, Object>) classLoader.define(bytecode).getConstructor().newInstance();
+    }
+
+    private static int runtimeVersion() {
+        final String version = System.getProperty("java.specification.version");
+        return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+    }
+
+    private static class SnippetClassLoader extends ClassLoader {
+
+        private SnippetClassLoader(final ClassLoader parent) {
+            super(parent);
+        }
+
+        private Class<?> define(final byte[] bytecode) {
+            return this.defineClass(ReplacementSnippet.NAME.replace('/', '.'), bytecode, 0, bytecode.length);
+        }
+
+    }
+
+}
@@ -0,0 +1,532 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.benchmark;
+
+import net.raphimc.javadowngrader.util.Constants;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.util.*;
+
+/**
+ * Reference snippets for the method call replacers and class replacers.<br>
+ * Every snippet is a generated {@link java.util.function.Function} whose {@code apply} method performs a single call
+ * of the replaced API on the input. The snippet is compiled for the Java version which introduced the API so it can
+ * be run natively on a modern JVM and after being downgraded.
+ */
+public enum ReplacementSnippet {
+
+    STRING_STRIP("StringStripMCR", 11) {
+        @Override
+        protected void apply(final MethodVisitor mv) {
+            loadInput(mv, "java/lang/String");
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/String", "strip", "()Ljava/lang/String;", false);
+        }
+
+        @Override
+        public Object input() {
+            return " \t  downgraded code \n ";
+        }
+    },
+    STRING_STRIP_LEADING("StringStripLeadingMCR", 11) {
+        @Override
+        protected void apply(final MethodVisitor mv) {
+            loadInput(mv, "java/lang/String");
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/String", "stripLeading", "()Ljava/lang/String;", false);
+        }
+
+        @Override
+        public Object input() {
+            return " \t  downgraded code \n ";
+        }
+    },
+    STRING_STRIP_TRAILING("StringStripTrailingMCR", 11) {
+        @Override
+        protected void apply(final MethodVisitor mv) {
+            loadInput(mv, "java/lang/String");
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/String", "stripTrailing", "()Ljava/lang/String;", false);
+        }
+
+        @Override
+        public Object input() {
+            return " \t  downgraded code \n ";
+        }
+    },
+    STRING_IS_BLANK("StringIsBlankMCR", 11) {
+        @Override
+        protected void apply(final MethodVisitor mv) {
+            loadInput(mv, "java/lang/String");
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/String", "isBlank", "()Z", false);
+            box(mv, Type.BOOLEAN_TYPE);
+        }
+
+        @Override
+        public Object input() {
+            return " \t  downgraded code \n ";
+        }
+    },
+    CHARACTER_TO_STRING("CharacterToStringMCR", 11) {
+        @Override
+        protected void apply(final MethodVisitor mv) {
+            loadInput(mv, "java/lang/Integer");
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Integer", "intValue", "()I", false);
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Character", "toString", "(I)Ljava/lang/String;", false);
+        }
+
+        @Override
+        public Object input() {
+            return 0x1F600;
+        }
+    },
+    CHAR_SEQUENCE_IS_EMPTY("CharSequenceIsEmptyMCR", 15) {
+        @Override
+        protected void apply(final MethodVisitor mv) {
+            loadInput(mv, "java/lang/CharSequence");
+            mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, "java/lang/CharSequence", "isEmpty", "()Z", true);
+            box(mv, Type.BOOLEAN_TYPE);
+        }
+
+        @Override
+        public Object input() {
+            return new StringBuilder("downgraded code");
+        }
+    },
+    LIST_OF("ListOfMCR", 9) {
+        @Override
+        protected void apply(final MethodVisitor mv) {
+            mv.visitVarInsn(Opcodes.ALOAD, 1);
+            mv.visitVarInsn(Opcodes.ALOAD, 1);
+            mv.visitVarInsn(Opcodes.ALOAD, 1);
+            mv.visitVarInsn(Opcodes.ALOAD, 1);
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/util/List", "of", "(Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)Ljava/util/List;", true);
+        }
+
+        @Override
+        public Object input() {
+            return "element";
+        }
+    },
+    LIST_OF_ARRAY("ListOfMCR", 9) {
+        @Override
+        protected void apply(final MethodVisitor mv) {
+            loadInput(mv, "[Ljava/lang/Object;");
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/util/List", "of", "([Ljava/lang/Object;)Ljava/util/List;", true);
+        }
+
+        @Override
+        public Object input() {
+            return elements(16).toArray();
+        }
+    },
+    SET_OF("SetOfMCR", 9) {
+        @Override
+        protected void apply(final MethodVisitor mv) {
+            mv.visitVarInsn(Opcodes.ALOAD, 1);
+            mv.visitLdcInsn("b");
+            mv.visitLdcInsn("c");
+            mv.visitLdcInsn("d");
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/util/Set", "of", "(Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)Ljava/util/Set;", true);
+        }
+
+        @Override
+        public Object input() {
+            return "a";
+        }
+    },
+    MAP_OF("MapOfMCR", 9) {
+        @Override
+        protected void apply(final MethodVisitor mv) {
+            mv.visitVarInsn(Opcodes.ALOAD, 1);
+            mv.visitLdcInsn("a");
+            mv.visitLdcInsn("b");
+            mv.visitVarInsn(Opcodes.ALOAD, 1);
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/util/Map", "of", "(Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)Ljava/util/Map;", true);
+        }
+
+        @Override
+        public Object input() {
+            return "key";
+        }
+    },
+    LIST_COPY_OF("ListCopyOfMCR", 10) {
+        @Override
+        protected void apply(final MethodVisitor mv) {
+            loadInput(mv, "java/util/Collection");
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/util/List", "copyOf", "(Ljava/util/Collection;)Ljava/util/List;", true);
+        }
+
+        @Override
+        public Object input() {
+            return elements(16);
+        }
+    },
+    SET_COPY_OF("SetCopyOfMCR", 10) {
+        @Override
+        protected void apply(final MethodVisitor mv) {
+            loadInput(mv, "java/util/Collection");
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/util/Set", "copyOf", "(Ljava/util/Collection;)Ljava/util/Set;", true);
+        }
+
+        @Override
+        public Object input() {
+            return elements(16);
+        }
+    },
+    MAP_COPY_OF("MapCopyOfMCR", 10) {
+        @Override
+        protected void apply(final MethodVisitor mv) {
+            loadInput(mv, "java/util/Map");
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/util/Map", "copyOf", "(Ljava/util/Map;)Ljava/util/Map;", true);
+        }
+
+        @Override
+        public Object input() {
+            final Map<String, String> map = new HashMap<>();
+            for (String element : elements(16)) {
+                map.put(element, element);
+            }
+            return map;
+        }
+    },
+    STREAM_TO_LIST("StreamToListMCR", 16) {
+        @Override
+        protected void apply(final MethodVisitor mv) {
+            loadInput(mv, "java/util/Collection");
+            mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, "java/util/Collection", "stream", "()Ljava/util/stream/Stream;", true);
+            mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, "java/util/stream/Stream", "toList", "()Ljava/util/List;", true);
+        }
+
+        @Override
+        public Object input() {
+            return elements(16);
+        }
+    },
+    OPTIONAL_IS_EMPTY("OptionalIsEmptyMCR", 11) {
+        @Override
+        protected void apply(final MethodVisitor mv) {
+            loadInput(mv, "java/util/Optional");
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/util/Optional", "isEmpty", "()Z", false);
+            box(mv, Type.BOOLEAN_TYPE);
+        }
+
+        @Override
+        public Object input() {
+            return Optional.of("value");
+        }
+    },
+    OPTIONAL_OR_ELSE_THROW("OptionalOrElseThrowMCR", 10) {
+        @Override
+        protected void apply(final MethodVisitor mv) {
+            loadInput(mv, "java/util/Optional");
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/util/Optional", "orElseThrow", "()Ljava/lang/Object;", false);
+        }
+
+        @Override
+        public Object input() {
+            return Optional.of("value");
+        }
+    },
+    OPTIONAL_STREAM("OptionalStreamMCR", 9) {
+        @Override
+        protected void apply(final MethodVisitor mv) {
+            loadInput(mv, "java/util/Optional");
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/util/Optional", "stream", "()Ljava/util/stream/Stream;", false);
+            mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, "java/util/stream/Stream", "count", "()J", true);
+            box(mv, Type.LONG_TYPE);
+        }
+
+        @Override
+        public Object input() {
+            return Optional.of("value");
+        }
+    },
+    OBJECTS_REQUIRE_NON_NULL_ELSE("ObjectsRequireNonNullElseMCR", 9) {
+        @Override
+        protected void apply(final MethodVisitor mv) {
+            mv.visitVarInsn(Opcodes.ALOAD, 1);
+            mv.visitLdcInsn("default");
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/util/Objects", "requireNonNullElse", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;", false);
+        }
+
+        @Override
+        public Object input() {
+            return "value";
+        }
+    },
+    MATH_FLOOR_MOD("MathFloorModMCR", 9) {
+        @Override
+        protected void apply(final MethodVisitor mv) {
+            loadInput(mv, "java/lang/Long");
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Long", "longValue", "()J", false);
+            mv.visitLdcInsn(7);
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Math", "floorMod", "(JI)I", false);
+            box(mv, Type.INT_TYPE);
+        }
+
+        @Override
+        public Object input() {
+            return -123456789L;
+        }
+    },
+    INPUT_STREAM_READ_ALL_BYTES("InputStreamReadAllBytesMCR", 9) {
+        @Override
+        protected void apply(final MethodVisitor mv) {
+            mv.visitTypeInsn(Opcodes.NEW, "java/io/ByteArrayInputStream");
+            mv.visitInsn(Opcodes.DUP);
+            loadInput(mv, "[B");
+            mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/io/ByteArrayInputStream", "<init>", "([B)V", false);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/io/InputStream", "readAllBytes", "()[B", false);
+        }
+
+        @Override
+        public Object input() {
+            return new byte[16 * 1024];
+        }
+    },
+    RUNTIME_VERSION("Runtime$Version class replacement", 10) {
+        @Override
+        protected void apply(final MethodVisitor mv) {
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Runtime", "version", "()Ljava/lang/Runtime$Version;", false);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Runtime$Version", "feature", "()I", false);
+            box(mv, Type.INT_TYPE);
+        }
+
+        @Override
+        public Object input() {
+            return null;
+        }
+    },
+    STRING_CONCAT("StringConcatFactoryReplacer", 9) {
+        @Override
+        protected void apply(final MethodVisitor mv) {
+            loadInput(mv, "java/lang/String");
+            mv.visitLdcInsn(42);
+            mv.visitLdcInsn(1234567890123L);
+            mv.visitVarInsn(Opcodes.ALOAD, 1);
+            mv.visitInvokeDynamicInsn("makeConcatWithConstants", "(Ljava/lang/String;IJLjava/lang/Object;)Ljava/lang/String;", STRING_CONCAT_BSM, "s=\u0001, i=\u0001, l=\u0001, o=\u0001");
+        }
+
+        @Override
+        public Object input() {
+            return "value";
+        }
+    },
+    RECORD_TO_STRING("RecordReplacer", 16) {
+        @Override
+        protected void apply(final MethodVisitor mv) {
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, NAME, "toString", "()Ljava/lang/String;", false);
+        }
+
+        @Override
+        public Object input() {
+            return null;
+        }
+
+        @Override
+        protected boolean isRecord() {
+            return true;
+        }
+    },
+    RECORD_HASH_CODE("RecordReplacer", 16) {
+        @Override
+        protected void apply(final MethodVisitor mv) {
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, NAME, "hashCode", "()I", false);
+            box(mv, Type.INT_TYPE);
+        }
+
+        @Override
+        public Object input() {
+            return null;
+        }
+
+        @Override
+        protected boolean isRecord() {
+            return true;
+        }
+    },
+    ;
+
+    /**
+     * The internal name of every generated snippet class. Each snippet is loaded by its own class loader.
+     */
+    public static final String NAME = "net/raphimc/javadowngrader/benchmark/snippet/Snippet";
+
+    private static final Handle STRING_CONCAT_BSM = new Handle(Opcodes.H_INVOKESTATIC, "java/lang/invoke/StringConcatFactory", "makeConcatWithConstants", "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/String;[Ljava/lang/Object;)Ljava/lang/invoke/CallSite;", false);
+    private static final Handle OBJECT_METHODS_BSM = new Handle(Opcodes.H_INVOKESTATIC, "java/lang/runtime/ObjectMethods", "bootstrap", Constants.OBJECTMETHODS_BOOTSTRAP_DESC, false);
+    private static final String[][] RECORD_COMPONENTS = {{"id", "I"}, {"name", "Ljava/lang/String;"}, {"timestamp", "J"}, {"values", "Ljava/util/List;"}};
+
+    private final String replacer;
+    private final int version;
+
+    ReplacementSnippet(final String replacer, final int version) {
+        this.replacer = replacer;
+        this.version = version;
+    }
+
+    /**
+     * @return The name of the replacer which is exercised by this snippet
+     */
+    public String getReplacer() {
+        return this.replacer;
+    }
+
+    /**
+     * @return The Java version which introduced the replaced API
+     */
+    public int getVersion() {
+        return this.version;
+    }
+
+    /**
+     * @return The argument passed to the {@code apply} method of the snippet
+     */
+    public abstract Object input();
+
+    /**
+     * Emits the body of the {@code apply} method. The input is stored in local 1 and the result has to be left on the stack.
+     */
+    protected abstract void apply(final MethodVisitor mv);
+
+    protected boolean isRecord() {
+        return false;
+    }
+
+    /**
+     * @return The class file of this snippet
+     */
+    public byte[] generate() {
+        final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        final int access = Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER | (this.isRecord() ? Opcodes.ACC_FINAL | Opcodes.ACC_RECORD : 0);
+        final String superName = this.isRecord() ? "java/lang/Record" : "java/lang/Object";
+        cw.visit(this.version + 44, access, NAME, null, superName, new String[]{"java/util/function/Function"});
+
+        final MethodVisitor constructor = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        constructor.visitCode();
+        constructor.visitVarInsn(Opcodes.ALOAD, 0);
+        constructor.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "<init>", "()V", false);
+        if (this.isRecord()) {
+            this.generateRecord(cw, constructor);
+        }
+        constructor.visitInsn(Opcodes.RETURN);
+        constructor.visitMaxs(0, 0);
+        constructor.visitEnd();
+
+        final MethodVisitor apply = cw.visitMethod(Opcodes.ACC_PUBLIC, "apply", "(Ljava/lang/Object;)Ljava/lang/Object;", null, null);
+        apply.visitCode();
+        this.apply(apply);
+        apply.visitInsn(Opcodes.ARETURN);
+        apply.visitMaxs(0, 0);
+        apply.visitEnd();
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private void generateRecord(final ClassWriter cw, final MethodVisitor constructor) {
+        final StringJoiner names = new StringJoiner(";");
+        final Object[] bsmArgs = new Object[RECORD_COMPONENTS.length + 2];
+        bsmArgs[0] = Type.getObjectType(NAME);
+        for (int i = 0; i < RECORD_COMPONENTS.length; i++) {
+            final String name = RECORD_COMPONENTS[i][0];
+            final String desc = RECORD_COMPONENTS[i][1];
+            cw.visitRecordComponent(name, desc, null).visitEnd();
+            cw.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL, name, desc, null, null).visitEnd();
+            names.add(name);
+            bsmArgs[i + 2] = new Handle(Opcodes.H_GETFIELD, NAME, name, desc, false);
+
+            final MethodVisitor accessor = cw.visitMethod(Opcodes.ACC_PUBLIC, name, "()" + desc, null, null);
+            accessor.visitCode();
+            accessor.visitVarInsn(Opcodes.ALOAD, 0);
+            accessor.visitFieldInsn(Opcodes.GETFIELD, NAME, name, desc);
+            accessor.visitInsn(Type.getType(desc).getOpcode(Opcodes.IRETURN));
+            accessor.visitMaxs(0, 0);
+            accessor.visitEnd();
+        }
+        bsmArgs[1] = names.toString();
+
+        constructor.visitVarInsn(Opcodes.ALOAD, 0);
+        constructor.visitLdcInsn(42);
+        constructor.visitFieldInsn(Opcodes.PUTFIELD, NAME, "id", "I");
+        constructor.visitVarInsn(Opcodes.ALOAD, 0);
+        constructor.visitLdcInsn("downgraded");
+        constructor.visitFieldInsn(Opcodes.PUTFIELD, NAME, "name", "Ljava/lang/String;");
+        constructor.visitVarInsn(Opcodes.ALOAD, 0);
+        constructor.visitLdcInsn(1234567890123L);
+        constructor.visitFieldInsn(Opcodes.PUTFIELD, NAME, "timestamp", "J");
+        constructor.visitVarInsn(Opcodes.ALOAD, 0);
+        constructor.visitInsn(Opcodes.ICONST_4);
+        constructor.visitLdcInsn("value");
+        constructor.visitMethodInsn(Opcodes.INVOKESTATIC, "java/util/Collections", "nCopies", "(ILjava/lang/Object;)Ljava/util/List;", false);
+        constructor.visitFieldInsn(Opcodes.PUTFIELD, NAME, "values", "Ljava/util/List;");
+
+        final String self = "L" + NAME + ";";
+        objectMethod(cw, "toString", "()Ljava/lang/String;", "(" + self + ")Ljava/lang/String;", Opcodes.ARETURN, bsmArgs);
+        objectMethod(cw, "hashCode", "()I", "(" + self + ")I", Opcodes.IRETURN, bsmArgs);
+        objectMethod(cw, "equals", "(Ljava/lang/Object;)Z", "(" + self + "Ljava/lang/Object;)Z", Opcodes.IRETURN, bsmArgs);
+    }
+
+    private static void objectMethod(final ClassWriter cw, final String methodName, final String desc, final String indyDesc, final int returnOpcode, final Object[] bsmArgs) {
+        final MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL, methodName, desc, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        if (Type.getArgumentTypes(desc).length == 1) {
+            mv.visitVarInsn(Opcodes.ALOAD, 1);
+        }
+        mv.visitInvokeDynamicInsn(methodName, indyDesc, OBJECT_METHODS_BSM, bsmArgs);
+        mv.visitInsn(returnOpcode);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private static void loadInput(final MethodVisitor mv, final String type) {
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitTypeInsn(Opcodes.CHECKCAST, type);
+    }
+
+    private static void box(final MethodVisitor mv, final Type type) {
+        final String wrapper;
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+                wrapper = "java/lang/Boolean";
+                break;
+            case Type.INT:
+                wrapper = "java/lang/Integer";
+                break;
+            case Type.LONG:
+                wrapper = "java/lang/Long";
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported type " + type);
+        }
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, wrapper, "valueOf", "(" + type.getDescriptor() + ")L" + wrapper + ";", false);
+    }
+
+    private static List<String> elements(final int count) {
+        final List<String> elements = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            elements.add("element" + i);
+        }
+        return elements;
+    }
+
+}
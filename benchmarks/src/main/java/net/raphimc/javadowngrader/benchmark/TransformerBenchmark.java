@@ -0,0 +1,72 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.benchmark;
+
+import net.raphimc.javadowngrader.transformer.DowngradeResult;
+import net.raphimc.javadowngrader.transformer.DowngradingTransformer;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures every {@link DowngradingTransformer} on its own.<br>
+ * Every invocation runs the transformer of the selected source version on one class of that version from the
+ * {@link BenchmarkCorpus}. The classes are parsed in an invocation level setup so only the transformer is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransformerBenchmark {
+
+    @Param({"21", "20", "19", "18", "17", "16", "15", "14", "13", "12", "11", "10", "9"})
+    private int sourceVersion;
+
+    private DowngradingTransformer transformer;
+    private List<byte[]> classes;
+    private int index;
+    private ClassNode classNode;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        final int targetVersion = this.sourceVersion - 1;
+        final String className = "net.raphimc.javadowngrader.transformer.j" + targetVersion + ".Java" + this.sourceVersion + "ToJava" + targetVersion;
+        this.transformer = (DowngradingTransformer) Class.forName(className).getConstructor().newInstance();
+        this.classes = BenchmarkCorpus.generate(this.sourceVersion);
+    }
+
+    @Setup(Level.Invocation)
+    public void nextClass() {
+        this.classNode = new ClassNode();
+        new ClassReader(this.classes.get(this.index)).accept(this.classNode, 0);
+        this.index = (this.index + 1) % this.classes.size();
+    }
+
+    @Benchmark
+    public DowngradeResult transform() {
+        final DowngradeResult result = new DowngradeResult();
+        this.transformer.transform(this.classNode, result);
+        return result;
+    }
+
+}
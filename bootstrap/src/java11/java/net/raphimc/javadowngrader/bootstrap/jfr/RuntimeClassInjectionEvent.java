@@ -0,0 +1,52 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.bootstrap.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * JDK Flight Recorder event for the runtime classes injected into a class loader by the RuntimeClassInjector.
+ */
+@Name("net.raphimc.javadowngrader.RuntimeClassInjection")
+@Label("Runtime Class Injection")
+@Description("The JavaDowngrader runtime classes were defined in a class loader")
+@Category("JavaDowngrader")
+@StackTrace(false)
+public class RuntimeClassInjectionEvent extends Event {
+
+    @Label("Class Loader")
+    private Class<?> classLoader;
+
+    @Label("Class Loader Name")
+    private String classLoaderName;
+
+    @Label("Class Count")
+    private int classCount;
+
+    @Label("Bytes")
+    @DataAmount
+    private long bytes;
+
+    public void set(final ClassLoader classLoader, final int classCount, final long bytes) {
+        this.classLoader = classLoader.getClass();
+        this.classLoaderName = classLoader.getName();
+        this.classCount = classCount;
+        this.bytes = bytes;
+    }
+
+}
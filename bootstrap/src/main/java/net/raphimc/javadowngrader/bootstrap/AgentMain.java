@@ -18,12 +18,16 @@
 package net.raphimc.javadowngrader.bootstrap;
 
 import net.lenni0451.classtransform.TransformerManager;
+import net.raphimc.javadowngrader.bootstrap.util.DowngradeCacheUtil;
 import net.raphimc.javadowngrader.bootstrap.util.FileSystemUtil;
+import net.raphimc.javadowngrader.bootstrap.util.PrefixFilter;
+import net.raphimc.javadowngrader.impl.classtransform.JarClassCache;
 import net.raphimc.javadowngrader.impl.classtransform.JavaDowngraderTransformer;
 import net.raphimc.javadowngrader.impl.classtransform.util.ClassNameUtil;
 import net.raphimc.javadowngrader.runtime.RuntimeRoot;
 import net.raphimc.javadowngrader.util.Constants;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.lang.instrument.Instrumentation;
@@ -32,6 +36,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class AgentMain {
@@ -61,12 +66,27 @@ public class AgentMain {
             }
         }
 
-        instrumentation.addTransformer(new RuntimeClassesAdderTransformer(runtimeClasses));
-        final TransformerManager transformerManager = new TransformerManager(new InstrumentationClassProvider(instrumentation));
-        transformerManager.addBytecodeTransformer(new JavaDowngraderTransformer(transformerManager));
-        transformerManager.hookInstrumentation(instrumentation);
+        final InstrumentationClassProvider classProvider = new InstrumentationClassProvider(instrumentation);
+        instrumentation.addTransformer(classProvider);
+        final TransformerManager transformerManager = new TransformerManager(classProvider);
+        transformerManager.addBytecodeTransformer(JavaDowngraderTransformer.builder(transformerManager).depCollector(DowngradingClassFileTransformer.DEP_COLLECTOR).build());
+        final JarClassCache cache = DowngradeCacheUtil.open(JavaDowngraderTransformer.NATIVE_CLASS_VERSION, Stream.of(System.getProperty("java.class.path").split(File.pathSeparator)).map(File::new).collect(Collectors.toList()));
+        final PrefixFilter classFilter = PrefixFilter.of(slashPrefixes(System.getProperty("downgradeInclude")), slashPrefixes(System.getProperty("downgradeExclude")));
+        final PrefixFilter loaderFilter = PrefixFilter.of(System.getProperty("downgradeIncludeLoaders"), System.getProperty("downgradeExcludeLoaders"));
+        instrumentation.addTransformer(new DowngradingClassFileTransformer(
+                transformerManager,
+                new RuntimeClassInjector(runtimeClasses),
+                cache,
+                JavaDowngraderTransformer.NATIVE_CLASS_VERSION,
+                classFilter,
+                loaderFilter
+        ));
 
         JavaVersionSpoofer.modifyProperties();
     }
 
+    private static String slashPrefixes(final String prefixes) {
+        return prefixes != null ? prefixes.replace('.', '/') : null;
+    }
+
 }
@@ -0,0 +1,48 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.bootstrap;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * A map key which compares class loaders by identity without keeping them alive.
+ */
+class ClassLoaderKey extends WeakReference<ClassLoader> {
+
+    private final int hashCode;
+
+    ClassLoaderKey(final ClassLoader loader, final ReferenceQueue<ClassLoader> queue) {
+        super(loader, queue);
+        this.hashCode = System.identityHashCode(loader);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ClassLoaderKey)) return false;
+        final ClassLoader loader = this.get();
+        return loader != null && loader == ((ClassLoaderKey) o).get();
+    }
+
+    @Override
+    public int hashCode() {
+        return this.hashCode;
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.bootstrap;
+
+import net.lenni0451.classtransform.TransformerManager;
+import net.raphimc.javadowngrader.RuntimeDepCollector;
+import net.raphimc.javadowngrader.impl.classtransform.DowngradeCache;
+import net.raphimc.javadowngrader.impl.classtransform.JarClassCache;
+
+import java.io.File;
+import java.lang.instrument.ClassFileTransformer;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Passes the classes loaded by the JVM to the transformer manager and injects the runtime classes they depend on into
+ * their class loader.<br>
+ * If a {@link JarClassCache} is given, classes loaded from a jar file are looked up in the cache of that jar first.
+ * Classes without a jar code source (e.g. from directories or generated at runtime) are never cached.
+ */
+public class DowngradingClassFileTransformer implements ClassFileTransformer {
+
+    private static final ThreadLocal<Collection<String>> RUNTIME_DEPS = new ThreadLocal<>();
+    /**
+     * Collects the runtime dependencies of the class which is currently transformed on this thread.
+     */
+    public static final RuntimeDepCollector DEP_COLLECTOR = dep -> {
+        final Collection<String> runtimeDeps = RUNTIME_DEPS.get();
+        if (runtimeDeps != null) {
+            runtimeDeps.add(dep);
+        }
+    };
+
+    // The class loader of the java.class.path, which is not the system class loader if -Djava.system.class.loader is set
+    private static final ClassLoader APPLICATION_LOADER = getApplicationLoader();
+    // The platform class loader on Java 9+ and the extension class loader on Java 8
+    private static final ClassLoader PLATFORM_LOADER = APPLICATION_LOADER.getParent() != null ? APPLICATION_LOADER.getParent() : APPLICATION_LOADER;
+
+    private final TransformerManager transformerManager;
+    private final RuntimeClassInjector runtimeClassInjector;
+    private final JarClassCache cache;
+    private final int targetVersion;
+    private final Predicate<String> classFilter;
+    private final Predicate<String> loaderFilter;
+    private final Map<String, Optional<JarClassCache.Jar>> jars = new ConcurrentHashMap<>();
+
+    /**
+     * @param transformerManager   The transformer manager, its downgrader must use {@link #DEP_COLLECTOR}
+     * @param runtimeClassInjector The injector for the runtime classes
+     * @param cache                The per-jar class cache or null
+     * @param targetVersion        The target class version
+     * @param classFilter          The filter for the internal names of the classes to downgrade
+     * @param loaderFilter         The filter for the class names of the class loaders whose classes should be downgraded
+     */
+    public DowngradingClassFileTransformer(final TransformerManager transformerManager, final RuntimeClassInjector runtimeClassInjector, final JarClassCache cache, final int targetVersion, final Predicate<String> classFilter, final Predicate<String> loaderFilter) {
+        this.transformerManager = transformerManager;
+        this.runtimeClassInjector = runtimeClassInjector;
+        this.cache = cache;
+        this.targetVersion = targetVersion;
+        this.classFilter = classFilter;
+        this.loaderFilter = loaderFilter;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        // Reject JDK and already compatible classes before any allocation
+        if (className == null || loader == null || loader == PLATFORM_LOADER) return null;
+        if (classfileBuffer.length < 8 || ((classfileBuffer[6] & 0xFF) << 8 | classfileBuffer[7] & 0xFF) <= this.targetVersion) return null;
+        if (!this.classFilter.test(className) || !this.loaderFilter.test(loader.getClass().getName())) return null;
+
+        try {
+            final JarClassCache.Jar jar = this.getJar(loader, protectionDomain);
+            if (jar != null) {
+                final DowngradeCache.Entry cached = jar.get(className);
+                if (cached != null) {
+                    this.runtimeClassInjector.inject(loader, cached.getRuntimeDeps());
+                    return cached.getBytecode();
+                }
+            }
+
+            final Collection<String> runtimeDeps = new LinkedHashSet<>();
+            // Loading classes during a transformation can transform other classes on the same thread
+            final Collection<String> outerRuntimeDeps = RUNTIME_DEPS.get();
+            RUNTIME_DEPS.set(runtimeDeps);
+            final byte[] transformed;
+            try {
+                transformed = this.transformerManager.transform(className.replace('/', '.'), classfileBuffer);
+            } finally {
+                if (outerRuntimeDeps != null) {
+                    RUNTIME_DEPS.set(outerRuntimeDeps);
+                } else {
+                    RUNTIME_DEPS.remove();
+                }
+            }
+            if (transformed != null) {
+                this.runtimeClassInjector.inject(loader, runtimeDeps);
+                if (jar != null) {
+                    jar.put(className, transformed, runtimeDeps);
+                }
+            }
+            return transformed;
+        } catch (Throwable t) {
+            System.err.println("Failed to transform class '" + className + "'");
+            t.printStackTrace();
+            return null;
+        }
+    }
+
+    private JarClassCache.Jar getJar(final ClassLoader loader, final ProtectionDomain protectionDomain) {
+        // The cache settings only cover the java.class.path, frames of classes from other class loaders depend on other jars
+        if (this.cache == null || loader != APPLICATION_LOADER || protectionDomain == null) return null;
+        final CodeSource codeSource = protectionDomain.getCodeSource();
+        if (codeSource == null || codeSource.getLocation() == null) return null;
+
+        final URL location = codeSource.getLocation();
+        // The external form is used as key because URL#equals resolves host names
+        return this.jars.computeIfAbsent(location.toExternalForm(), l -> {
+            if (!"file".equals(location.getProtocol())) return Optional.empty();
+            try {
+                return Optional.ofNullable(this.cache.open(new File(location.toURI())));
+            } catch (Throwable t) {
+                return Optional.empty();
+            }
+        }).orElse(null);
+    }
+
+    private static ClassLoader getApplicationLoader() {
+        // The child of the root non-null ancestor, as a custom system class loader (-Djava.system.class.loader) adds a level
+        ClassLoader loader = ClassLoader.getSystemClassLoader();
+        while (loader.getParent() != null && loader.getParent().getParent() != null) {
+            loader = loader.getParent();
+        }
+        return loader;
+    }
+
+}
@@ -19,40 +19,116 @@ package net.raphimc.javadowngrader.bootstrap;
 
 import net.lenni0451.classtransform.utils.tree.BasicClassProvider;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
-import java.util.HashSet;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.security.ProtectionDomain;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class InstrumentationClassProvider extends BasicClassProvider {
+/**
+ * Provides the classes of all class loaders which have loaded classes in the JVM.<br>
+ * The class loaders are registered incrementally from the {@link ClassFileTransformer} callbacks, so this provider has
+ * to be added to the instrumentation before the transformer which downgrades classes. Found classes are cached softly
+ * and missing classes are cached until a new class loader is registered or a class with the same name is loaded.
+ */
+public class InstrumentationClassProvider extends BasicClassProvider implements ClassFileTransformer {
 
-    private final Instrumentation instrumentation;
-    private final Set<ClassLoader> classLoaders = new HashSet<>();
+    private final Map<ClassLoaderKey, Boolean> registeredLoaders = new ConcurrentHashMap<>();
+    private final List<ClassLoaderKey> classLoaders = new CopyOnWriteArrayList<>();
+    private final ReferenceQueue<ClassLoader> collectedLoaders = new ReferenceQueue<>();
+    private final Map<String, SoftReference<byte[]>> classes = new ConcurrentHashMap<>();
+    private final Set<String> missingClasses = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger generation = new AtomicInteger();
+    private volatile WeakReference<ClassLoader> lastLoader = new WeakReference<>(null);
 
     public InstrumentationClassProvider(Instrumentation instrumentation) {
-        this.instrumentation = instrumentation;
+        this.register(ClassLoader.getSystemClassLoader());
+        for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+            this.register(clazz.getClassLoader());
+        }
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        // Most classes are loaded by the same class loader as the previous class
+        if (loader != null && this.lastLoader.get() != loader) {
+            this.register(loader);
+            this.lastLoader = new WeakReference<>(loader);
+        }
+        if (className != null && !this.missingClasses.isEmpty()) {
+            this.missingClasses.remove(className);
+        }
+        return null;
     }
 
     @Override
     public byte[] getClass(String name) throws ClassNotFoundException {
-        for (int i = 0; i < 2; i++) {
-            for (ClassLoader classLoader : this.classLoaders) {
-                try {
-                    this.classLoader = classLoader;
-                    return super.getClass(name);
-                } catch (ClassNotFoundException ignored) {
-                }
+        final String internalName = name.replace('.', '/');
+        final SoftReference<byte[]> cached = this.classes.get(internalName);
+        byte[] bytecode = cached != null ? cached.get() : null;
+        if (bytecode != null) return bytecode;
+        if (this.missingClasses.contains(internalName)) throw new ClassNotFoundException(name);
+
+        final int generation = this.generation.get();
+        for (ClassLoaderKey key : this.classLoaders) {
+            final ClassLoader classLoader = key.get();
+            if (classLoader == null) continue;
+            try (InputStream is = classLoader.getResourceAsStream(internalName + ".class")) {
+                if (is == null) continue;
+                bytecode = readAll(is);
+            } catch (IOException ignored) {
+                continue;
             }
-            this.refreshClassLoaders();
+            this.classes.put(internalName, new SoftReference<>(bytecode));
+            return bytecode;
         }
 
+        this.missingClasses.add(internalName);
+        if (this.generation.get() != generation) {
+            // A class loader was registered during the lookup
+            this.missingClasses.remove(internalName);
+        }
         throw new ClassNotFoundException(name);
     }
 
-    private void refreshClassLoaders() {
-        this.classLoaders.clear();
-        for (Class<?> clazz : this.instrumentation.getAllLoadedClasses()) {
-            this.classLoaders.add(clazz.getClassLoader());
+    private void register(ClassLoader loader) {
+        // The boot class loader is reached through the delegation of the system class loader
+        while (loader != null && !this.registeredLoaders.containsKey(new ClassLoaderKey(loader, null))) {
+            final ClassLoaderKey key = new ClassLoaderKey(loader, this.collectedLoaders);
+            if (this.registeredLoaders.putIfAbsent(key, Boolean.TRUE) == null) {
+                this.classLoaders.add(key);
+                this.generation.incrementAndGet();
+                this.missingClasses.clear();
+            }
+            loader = loader.getParent();
+        }
+
+        Reference<? extends ClassLoader> collected;
+        while ((collected = this.collectedLoaders.poll()) != null) {
+            this.registeredLoaders.remove(collected);
+            this.classLoaders.remove(collected);
+        }
+    }
+
+    private static byte[] readAll(final InputStream is) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            baos.write(buffer, 0, read);
         }
+        return baos.toByteArray();
     }
 
 }
@@ -23,12 +23,19 @@ import net.lenni0451.classtransform.utils.loader.InjectionClassLoader;
 import net.lenni0451.classtransform.utils.tree.BasicClassProvider;
 import net.lenni0451.reflect.ClassLoaders;
 import net.lenni0451.reflect.Methods;
+import net.raphimc.javadowngrader.bootstrap.util.DowngradeCacheUtil;
+import net.raphimc.javadowngrader.impl.classtransform.DowngradeCache;
+import net.raphimc.javadowngrader.impl.classtransform.JarClassCache;
 import net.raphimc.javadowngrader.impl.classtransform.JavaDowngraderTransformer;
 
 import java.io.File;
 import java.net.URL;
+import java.net.URLClassLoader;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
 public class Main {
@@ -50,11 +57,17 @@ public class Main {
 
         URL jarUrl;
         String mainClass;
+        final Set<String> jarClasses = new HashSet<>();
         try {
             jarUrl = jarFile.toURI().toURL();
 
             try (final JarFile jar = new JarFile(jarFile)) {
                 mainClass = jar.getManifest().getMainAttributes().getValue("Main-Class");
+                jar.stream()
+                        .map(JarEntry::getName)
+                        .filter(name -> name.endsWith(".class"))
+                        .map(name -> name.substring(0, name.length() - 6).replace('/', '.'))
+                        .forEach(jarClasses::add);
             }
             if (mainClass == null) throw new RuntimeException("No main class found");
         } catch (Throwable e) {
@@ -66,11 +79,43 @@ public class Main {
         urls[urls.length - 1] = jarUrl;
         args = Arrays.copyOfRange(args, 1, args.length);
 
-        final TransformerManager transformerManager = new TransformerManager(new LazyFileClassProvider(Collections.singletonList(jarFile), new BasicClassProvider()));
-        transformerManager.addBytecodeTransformer(new JavaDowngraderTransformer(transformerManager));
-        final InjectionClassLoader injectionClassLoader = new InjectionClassLoader(transformerManager, urls);
-        Thread.currentThread().setContextClassLoader(injectionClassLoader);
-        Methods.invoke(null, Methods.getDeclaredMethod(injectionClassLoader.loadClass(mainClass), "main", String[].class), (Object) args);
+        ClassLoader classLoader = null;
+        if (Boolean.getBoolean("preDowngrade")) {
+            try {
+                final PreDowngrader preDowngrader = new PreDowngrader(JavaDowngraderTransformer.NATIVE_CLASS_VERSION, Runtime.getRuntime().availableProcessors());
+                final File downgradedJar = preDowngrader.prepare(jarFile);
+                classLoader = new URLClassLoader(new URL[]{downgradedJar.toURI().toURL()}, Main.class.getClassLoader());
+            } catch (Throwable e) {
+                System.err.println("Unable to pre-downgrade '" + jarFile + "', downgrading during runtime instead: " + e);
+            }
+        }
+        if (classLoader == null) {
+            final TransformerManager transformerManager = new TransformerManager(new LazyFileClassProvider(Collections.singletonList(jarFile), new BasicClassProvider()));
+            final JavaDowngraderTransformer transformer = new JavaDowngraderTransformer(transformerManager);
+            final JarClassCache cache = DowngradeCacheUtil.open(JavaDowngraderTransformer.NATIVE_CLASS_VERSION, Collections.singletonList(jarFile));
+            final JarClassCache.Jar jarCache = cache != null ? cache.open(jarFile) : null;
+            if (jarCache != null) {
+                transformerManager.addBytecodeTransformer((className, bytecode, calculateStackMapFrames) -> {
+                    // Classes from the system classpath are loaded by the same class loader but don't belong to the jar
+                    if (!calculateStackMapFrames || !jarClasses.contains(className)) {
+                        return transformer.transform(className, bytecode, calculateStackMapFrames);
+                    }
+                    final DowngradeCache.Entry cached = jarCache.get(className);
+                    if (cached != null) return cached.getBytecode();
+                    final byte[] transformed = transformer.transform(className, bytecode, true);
+                    if (transformed != null) {
+                        // The runtime classes are part of the system classpath
+                        jarCache.put(className, transformed, Collections.emptyList());
+                    }
+                    return transformed;
+                });
+            } else {
+                transformerManager.addBytecodeTransformer(transformer);
+            }
+            classLoader = new InjectionClassLoader(transformerManager, urls);
+        }
+        Thread.currentThread().setContextClassLoader(classLoader);
+        Methods.invoke(null, Methods.getDeclaredMethod(classLoader.loadClass(mainClass), "main", String[].class), (Object) args);
 
         JavaVersionSpoofer.modifyProperties();
     }
@@ -0,0 +1,310 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.bootstrap;
+
+import net.lenni0451.classtransform.TransformerManager;
+import net.lenni0451.classtransform.utils.tree.BasicClassProvider;
+import net.lenni0451.classtransform.utils.tree.IClassProvider;
+import net.raphimc.javadowngrader.impl.classtransform.JavaDowngraderTransformer;
+import net.raphimc.javadowngrader.impl.classtransform.classprovider.ZipArchiveClassProvider;
+import net.raphimc.javadowngrader.impl.classtransform.util.ClassNameUtil;
+import net.raphimc.javadowngrader.impl.classtransform.util.TypeHierarchyIndex;
+import net.raphimc.javadowngrader.impl.classtransform.util.ZipArchive;
+import net.raphimc.javadowngrader.impl.classtransform.util.ZipArchiveWriter;
+import net.raphimc.javadowngrader.runtime.RuntimeRoot;
+
+import java.io.*;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.*;
+import java.security.CodeSource;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * Downgrades a jar and the jars of its {@code Class-Path} manifest attribute ahead of time into jars next to the
+ * original ones, so they can be loaded without any runtime transformation.<br>
+ * The downgraded jars contain a stamp of the original jars and of JavaDowngrader in their manifest. They are only
+ * recreated when the stamp changes.
+ */
+public class PreDowngrader {
+
+    private static final String STAMP_ATTRIBUTE = "JavaDowngrader-Source-Stamp";
+
+    private final int targetVersion;
+    private final int threadCount;
+
+    public PreDowngrader(final int targetVersion, final int threadCount) {
+        this.targetVersion = targetVersion;
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Returns the downgraded version of a jar and creates it first if it is missing or out of date.<br>
+     * The jars of its {@code Class-Path} manifest attribute are downgraded too, as they are loaded by the same class
+     * loader without any runtime transformation.
+     *
+     * @param jarFile The jar to downgrade
+     * @return The downgraded jar
+     * @throws Throwable If the jar could not be downgraded
+     */
+    public File prepare(File jarFile) throws Throwable {
+        jarFile = jarFile.getAbsoluteFile();
+        final Map<File, File> jars = new LinkedHashMap<>();
+        jars.put(jarFile, this.getDowngradedFile(jarFile));
+        for (File classPathJar : getClassPathJars(jarFile, readManifest(jarFile))) {
+            jars.putIfAbsent(classPathJar, this.getDowngradedFile(classPathJar));
+        }
+
+        final String stamp = this.createStamp(jars.keySet());
+        final Map<File, File> outdatedJars = new LinkedHashMap<>();
+        for (Map.Entry<File, File> entry : jars.entrySet()) {
+            if (!stamp.equals(readStamp(entry.getValue()))) {
+                outdatedJars.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (!outdatedJars.isEmpty()) {
+            this.downgrade(jars, outdatedJars, stamp);
+        }
+        return jars.get(jarFile);
+    }
+
+    private void downgrade(final Map<File, File> jars, final Map<File, File> outdatedJars, final String stamp) throws Throwable {
+        final Map<File, ZipArchive> archives = new LinkedHashMap<>();
+        final ExecutorService threadPool = Executors.newFixedThreadPool(this.threadCount);
+        try {
+            // All jars are part of the class provider, so frames can be computed for classes extending classes of other jars
+            IClassProvider classProvider = new BasicClassProvider();
+            final List<File> files = new ArrayList<>(jars.keySet());
+            Collections.reverse(files);
+            for (File file : files) {
+                final ZipArchive archive = new ZipArchive(file.toPath());
+                archives.put(file, archive);
+                classProvider = new ZipArchiveClassProvider(archive, classProvider);
+            }
+            final TypeHierarchyIndex typeHierarchyIndex = new TypeHierarchyIndex(classProvider);
+
+            for (Map.Entry<File, File> entry : outdatedJars.entrySet()) {
+                System.err.println("Pre-downgrading " + entry.getKey() + " to " + entry.getValue());
+                this.downgradeJar(entry.getKey(), archives.get(entry.getKey()), entry.getValue(), classProvider, typeHierarchyIndex, jars, stamp, threadPool);
+            }
+        } finally {
+            threadPool.shutdownNow();
+            for (ZipArchive archive : archives.values()) {
+                archive.close();
+            }
+        }
+    }
+
+    private void downgradeJar(final File jarFile, final ZipArchive archive, final File outputFile, final IClassProvider classProvider, final TypeHierarchyIndex typeHierarchyIndex, final Map<File, File> jars, final String stamp, final ExecutorService threadPool) throws Throwable {
+        final Collection<String> runtimeDeps = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        final TransformerManager transformerManager = new TransformerManager(classProvider);
+        transformerManager.addBytecodeTransformer(JavaDowngraderTransformer.builder(transformerManager)
+                .targetVersion(this.targetVersion)
+                .depCollector(runtimeDeps::add)
+                .typeHierarchyIndex(typeHierarchyIndex)
+                .build());
+
+        final Path output = outputFile.toPath();
+        final Path temp = Files.createTempFile(output.getParent(), output.getFileName().toString(), ".tmp");
+        try {
+            try (ZipArchiveWriter writer = new ZipArchiveWriter(temp)) {
+                final ZipArchive.Entry manifestEntry = archive.getEntry(JarFile.MANIFEST_NAME);
+                final Manifest manifest = manifestEntry != null ? new Manifest(new ByteArrayInputStream(archive.read(manifestEntry))) : new Manifest();
+                this.rewriteManifest(manifest, jarFile, jars, stamp);
+                final ByteArrayOutputStream manifestData = new ByteArrayOutputStream();
+                manifest.write(manifestData);
+                writer.write(JarFile.MANIFEST_NAME, manifestData.toByteArray());
+
+                // Entries are transformed in parallel but written in the order of the input jar
+                final int maxPendingEntries = this.threadCount * 4;
+                final Deque<Future<EntryWriter>> pending = new ArrayDeque<>(maxPendingEntries);
+                for (ZipArchive.Entry entry : archive.getEntries()) {
+                    final String name = entry.getName();
+                    if (name.equals(JarFile.MANIFEST_NAME) || isSignatureFile(name)) continue;
+                    if (pending.size() >= maxPendingEntries) {
+                        writeEntry(pending.poll(), writer);
+                    }
+                    pending.add(threadPool.submit(() -> {
+                        final byte[] raw = archive.readRaw(entry);
+                        if (entry.isDirectory() || !name.endsWith(".class") || name.contains("META-INF/versions/")) {
+                            return out -> out.writeRaw(entry, raw);
+                        }
+                        final byte[] header = ZipArchive.decompress(entry, raw, 8);
+                        if (header.length == 8 && ((header[6] & 0xFF) << 8 | header[7] & 0xFF) <= this.targetVersion) {
+                            return out -> out.writeRaw(entry, raw);
+                        }
+
+                        final byte[] result = transformerManager.transform(ClassNameUtil.toClassName(name), ZipArchive.decompress(entry, raw, Integer.MAX_VALUE));
+                        if (result == null) {
+                            return out -> out.writeRaw(entry, raw);
+                        }
+                        final ZipArchiveWriter.CompressedEntry compressed = writer.compress(entry, result);
+                        return out -> out.write(compressed);
+                    }));
+                }
+                while (!pending.isEmpty()) {
+                    writeEntry(pending.poll(), writer);
+                }
+
+                for (String runtimeDep : new TreeSet<>(runtimeDeps)) {
+                    final String classPath = runtimeDep.concat(".class");
+                    if (archive.getEntry(classPath) != null) continue;
+                    try (InputStream is = RuntimeRoot.class.getResourceAsStream("/" + classPath)) {
+                        if (is == null) throw new FileNotFoundException("Runtime class '" + runtimeDep + "' not found");
+                        writer.write(classPath, is);
+                    }
+                }
+            }
+
+            try {
+                Files.move(temp, output, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void rewriteManifest(final Manifest manifest, final File jarFile, final Map<File, File> jars, final String stamp) {
+        final Attributes attributes = manifest.getMainAttributes();
+        attributes.putIfAbsent(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.putValue(STAMP_ATTRIBUTE, stamp);
+        // The signature digests are invalid after the classes are changed
+        for (Iterator<Attributes> it = manifest.getEntries().values().iterator(); it.hasNext(); ) {
+            final Attributes entryAttributes = it.next();
+            entryAttributes.keySet().removeIf(name -> name.toString().endsWith("-Digest"));
+            if (entryAttributes.isEmpty()) it.remove();
+        }
+
+        final String classPath = attributes.getValue(Attributes.Name.CLASS_PATH);
+        if (classPath == null) return;
+        final StringBuilder newClassPath = new StringBuilder();
+        for (String element : classPath.trim().split("\\s+")) {
+            if (newClassPath.length() != 0) newClassPath.append(' ');
+            final File file = resolveClassPathElement(jarFile, element);
+            if (file != null && jars.containsKey(file)) {
+                newClassPath.append(this.getDowngradedName(element));
+            } else {
+                newClassPath.append(element);
+            }
+        }
+        attributes.put(Attributes.Name.CLASS_PATH, newClassPath.toString());
+    }
+
+    private File getDowngradedFile(final File jarFile) {
+        return new File(jarFile.getParentFile(), this.getDowngradedName(jarFile.getName()));
+    }
+
+    private String getDowngradedName(String name) {
+        if (name.endsWith(".jar")) {
+            name = name.substring(0, name.length() - 4);
+        }
+        return name + "-downgraded-" + (this.targetVersion - 44) + ".jar";
+    }
+
+    private String createStamp(final Collection<File> jars) {
+        final StringBuilder stamp = new StringBuilder();
+        stamp.append(this.targetVersion);
+        final CodeSource codeSource = PreDowngrader.class.getProtectionDomain().getCodeSource();
+        final URL location = codeSource != null ? codeSource.getLocation() : null;
+        if (location != null) {
+            // Snapshot builds of JavaDowngrader don't change the version, so the jar itself is stamped
+            try {
+                stamp.append(';').append(stampFile(new File(location.toURI())));
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                stamp.append(';').append(location);
+            }
+        }
+        for (File jar : jars) {
+            stamp.append(';').append(stampFile(jar));
+        }
+        return stamp.toString();
+    }
+
+    private static String stampFile(final File file) {
+        return file.getAbsolutePath() + ',' + file.length() + ',' + file.lastModified();
+    }
+
+    private static String readStamp(final File downgradedJar) {
+        if (!downgradedJar.isFile()) return null;
+        try (JarFile jar = new JarFile(downgradedJar)) {
+            final Manifest manifest = jar.getManifest();
+            return manifest != null ? manifest.getMainAttributes().getValue(STAMP_ATTRIBUTE) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static Manifest readManifest(final File jarFile) throws IOException {
+        try (JarFile jar = new JarFile(jarFile)) {
+            return jar.getManifest();
+        }
+    }
+
+    private static List<File> getClassPathJars(final File jarFile, final Manifest manifest) throws IOException {
+        final List<File> jars = new ArrayList<>();
+        final String classPath = manifest != null ? manifest.getMainAttributes().getValue(Attributes.Name.CLASS_PATH) : null;
+        if (classPath == null) return jars;
+
+        for (String element : classPath.trim().split("\\s+")) {
+            final File file = resolveClassPathElement(jarFile, element);
+            if (file != null && file.isFile()) {
+                jars.add(file);
+            } else if (file == null || file.exists()) {
+                // Classes of other elements would be loaded without any transformation
+                throw new IOException("Class-Path element '" + element + "' can't be pre-downgraded");
+            }
+        }
+        return jars;
+    }
+
+    private static File resolveClassPathElement(final File jarFile, final String element) {
+        try {
+            // Class-Path elements are URLs relative to the jar
+            final URI uri = jarFile.getParentFile().toURI().resolve(element);
+            return "file".equals(uri.getScheme()) ? new File(uri) : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static boolean isSignatureFile(final String name) {
+        if (!name.startsWith("META-INF/") || name.indexOf('/', 9) != -1) return false;
+        return name.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA") || name.endsWith(".EC");
+    }
+
+    private static void writeEntry(final Future<EntryWriter> future, final ZipArchiveWriter writer) throws Throwable {
+        try {
+            future.get().write(writer);
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    @FunctionalInterface
+    private interface EntryWriter {
+        void write(final ZipArchiveWriter writer) throws IOException;
+    }
+
+}
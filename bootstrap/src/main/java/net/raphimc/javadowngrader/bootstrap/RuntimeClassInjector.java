@@ -0,0 +1,152 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.bootstrap;
+
+import net.lenni0451.reflect.ClassLoaders;
+import net.lenni0451.reflect.Methods;
+import net.raphimc.javadowngrader.bootstrap.jfr.RuntimeClassInjectionEvent;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.Remapper;
+import org.objectweb.asm.tree.ClassNode;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Injects the JavaDowngrader runtime classes into the class loaders of downgraded classes.<br>
+ * Only the runtime classes which were reported as dependencies of the downgraded classes and the runtime classes they
+ * reference are defined. The injected classes are tracked per class loader in a weak concurrent map, so checking
+ * already injected dependencies doesn't lock and class loaders can still be garbage collected.
+ */
+public class RuntimeClassInjector {
+
+    private static final Method FIND_LOADED_CLASS = Methods.getDeclaredMethod(ClassLoader.class, "findLoadedClass", String.class);
+
+    private final Map<String, byte[]> runtimeClasses;
+    private final Map<String, Dependencies> dependencies = new ConcurrentHashMap<>();
+    private final Map<ClassLoaderKey, Set<String>> injectedClasses = new ConcurrentHashMap<>();
+    private final ReferenceQueue<ClassLoader> collectedLoaders = new ReferenceQueue<>();
+
+    /**
+     * @param runtimeClasses The runtime classes by their binary name
+     */
+    public RuntimeClassInjector(final Map<String, byte[]> runtimeClasses) {
+        this.runtimeClasses = runtimeClasses;
+    }
+
+    /**
+     * Defines the given runtime classes in a class loader if they are not already defined.
+     *
+     * @param loader      The class loader of the downgraded class
+     * @param runtimeDeps The internal names of the runtime dependencies of the downgraded class
+     */
+    public void inject(final ClassLoader loader, final Collection<String> runtimeDeps) {
+        if (loader == null || runtimeDeps.isEmpty()) return;
+
+        final Set<String> injected = this.getInjectedClasses(loader);
+        boolean missing = false;
+        for (String runtimeDep : runtimeDeps) {
+            if (!injected.contains(runtimeDep.replace('/', '.'))) {
+                missing = true;
+                break;
+            }
+        }
+        if (!missing) return;
+
+        // Parallel capable class loaders can load classes with the same dependencies on multiple threads
+        synchronized (injected) {
+            final RuntimeClassInjectionEvent event = new RuntimeClassInjectionEvent();
+            event.begin();
+            final int[] classCount = new int[1];
+            final long[] bytes = new long[1];
+            for (String runtimeDep : runtimeDeps) {
+                this.define(loader, injected, runtimeDep.replace('/', '.'), classCount, bytes);
+            }
+            if (classCount[0] != 0 && event.shouldCommit()) {
+                event.set(loader, classCount[0], bytes[0]);
+                event.commit();
+            }
+        }
+    }
+
+    private void define(final ClassLoader loader, final Set<String> injected, final String name, final int[] classCount, final long[] bytes) {
+        if (injected.contains(name)) return;
+        final byte[] bytecode = this.runtimeClasses.get(name);
+        if (bytecode == null) return;
+
+        final Dependencies dependencies = this.dependencies.computeIfAbsent(name, n -> new Dependencies(bytecode));
+        for (String superType : dependencies.superTypes) {
+            this.define(loader, injected, superType, classCount, bytes);
+        }
+        try {
+            ClassLoaders.defineClass(loader, name, bytecode);
+            classCount[0]++;
+            bytes[0] += bytecode.length;
+        } catch (LinkageError e) {
+            // Only a duplicate definition is expected here, e.g. when the application already contains the class
+            if (findLoadedClass(loader, name) == null) throw e;
+        }
+        injected.add(name);
+        for (String reference : dependencies.references) {
+            this.define(loader, injected, reference, classCount, bytes);
+        }
+    }
+
+    private Set<String> getInjectedClasses(final ClassLoader loader) {
+        final Set<String> injected = this.injectedClasses.get(new ClassLoaderKey(loader, null));
+        if (injected != null) return injected;
+
+        Reference<? extends ClassLoader> collected;
+        while ((collected = this.collectedLoaders.poll()) != null) {
+            this.injectedClasses.remove(collected);
+        }
+        return this.injectedClasses.computeIfAbsent(new ClassLoaderKey(loader, this.collectedLoaders), k -> ConcurrentHashMap.newKeySet());
+    }
+
+    private static Class<?> findLoadedClass(final ClassLoader loader, final String name) {
+        return Methods.invoke(loader, FIND_LOADED_CLASS, name);
+    }
+
+    private static final class Dependencies {
+        private final List<String> superTypes = new ArrayList<>();
+        private final Set<String> references = new LinkedHashSet<>();
+
+        private Dependencies(final byte[] bytecode) {
+            final ClassReader reader = new ClassReader(bytecode);
+            if (reader.getSuperName() != null) {
+                this.superTypes.add(reader.getSuperName().replace('/', '.'));
+            }
+            for (String itf : reader.getInterfaces()) {
+                this.superTypes.add(itf.replace('/', '.'));
+            }
+            // The verifier also loads classes which are only referenced in descriptors, so all referenced types are collected
+            reader.accept(new ClassRemapper(new ClassNode(), new Remapper() {
+                @Override
+                public String map(String internalName) {
+                    Dependencies.this.references.add(internalName.replace('/', '.'));
+                    return internalName;
+                }
+            }), ClassReader.SKIP_FRAMES);
+        }
+    }
+
+}
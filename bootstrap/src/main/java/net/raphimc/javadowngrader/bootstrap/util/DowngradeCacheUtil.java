@@ -0,0 +1,50 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.bootstrap.util;
+
+import net.raphimc.javadowngrader.impl.classtransform.JarClassCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Collection;
+
+public class DowngradeCacheUtil {
+
+    /**
+     * Opens the persistent per-jar class cache if the {@code downgradeCache} system property is set.<br>
+     * The maximum size of the cache can be set in megabytes using the {@code downgradeCacheSize} system property.
+     *
+     * @param targetVersion The target class version
+     * @param classpath     The classpath used for frame computation
+     * @return The cache or null if it is disabled or could not be opened
+     */
+    public static JarClassCache open(final int targetVersion, final Collection<File> classpath) {
+        final String directory = System.getProperty("downgradeCache");
+        if (directory == null) return null;
+
+        try {
+            final long maxSize = Long.getLong("downgradeCacheSize", 1024L) * 1024 * 1024;
+            return new JarClassCache(Paths.get(directory), maxSize, JarClassCache.settings(targetVersion, classpath));
+        } catch (IOException e) {
+            System.err.println("Unable to open the class cache '" + directory + "': " + e);
+            return null;
+        }
+    }
+
+}
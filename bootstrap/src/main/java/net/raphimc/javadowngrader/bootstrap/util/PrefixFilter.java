@@ -0,0 +1,124 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.bootstrap.util;
+
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * Filters names by include and exclude prefixes which are stored in a trie.<br>
+ * The longest matching prefix decides if a name is included. Names without a matching prefix are included if no
+ * include prefixes are configured. Testing a name doesn't allocate.
+ */
+public class PrefixFilter implements Predicate<String> {
+
+    private static final byte NONE = 0;
+    private static final byte INCLUDE = 1;
+    private static final byte EXCLUDE = 2;
+
+    private final Node root = new Node();
+    private boolean hasIncludes;
+
+    /**
+     * Creates a filter from comma separated prefix lists.
+     *
+     * @param includes The prefixes to include or null
+     * @param excludes The prefixes to exclude or null
+     * @return The filter
+     */
+    public static PrefixFilter of(final String includes, final String excludes) {
+        final PrefixFilter filter = new PrefixFilter();
+        if (includes != null) {
+            for (String prefix : includes.split(",")) {
+                if (!prefix.trim().isEmpty()) filter.include(prefix.trim());
+            }
+        }
+        if (excludes != null) {
+            for (String prefix : excludes.split(",")) {
+                if (!prefix.trim().isEmpty()) filter.exclude(prefix.trim());
+            }
+        }
+        return filter;
+    }
+
+    public PrefixFilter include(final String prefix) {
+        this.put(prefix, INCLUDE);
+        this.hasIncludes = true;
+        return this;
+    }
+
+    public PrefixFilter exclude(final String prefix) {
+        this.put(prefix, EXCLUDE);
+        return this;
+    }
+
+    /**
+     * @return If no prefixes are configured and every name is included
+     */
+    public boolean isEmpty() {
+        return this.root.keys.length == 0 && this.root.value == NONE;
+    }
+
+    @Override
+    public boolean test(final String name) {
+        byte value = this.root.value;
+        Node node = this.root;
+        for (int i = 0; i < name.length() && node != null; i++) {
+            node = node.get(name.charAt(i));
+            if (node != null && node.value != NONE) {
+                value = node.value;
+            }
+        }
+        if (value == NONE) return !this.hasIncludes;
+        return value == INCLUDE;
+    }
+
+    private void put(final String prefix, final byte value) {
+        Node node = this.root;
+        for (int i = 0; i < prefix.length(); i++) {
+            node = node.getOrCreate(prefix.charAt(i));
+        }
+        node.value = value;
+    }
+
+    private static final class Node {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private byte value = NONE;
+
+        private Node get(final char c) {
+            for (int i = 0; i < this.keys.length; i++) {
+                if (this.keys[i] == c) return this.children[i];
+            }
+            return null;
+        }
+
+        private Node getOrCreate(final char c) {
+            Node child = this.get(c);
+            if (child == null) {
+                child = new Node();
+                this.keys = Arrays.copyOf(this.keys, this.keys.length + 1);
+                this.children = Arrays.copyOf(this.children, this.children.length + 1);
+                this.keys[this.keys.length - 1] = c;
+                this.children[this.children.length - 1] = child;
+            }
+            return child;
+        }
+    }
+
+}
@@ -0,0 +1,265 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.gradle.service;
+
+import net.lenni0451.classtransform.utils.tree.BasicClassProvider;
+import net.lenni0451.classtransform.utils.tree.IClassProvider;
+import net.raphimc.javadowngrader.impl.classtransform.util.ClassNameUtil;
+import net.raphimc.javadowngrader.impl.classtransform.util.TypeHierarchyIndex;
+import net.raphimc.javadowngrader.impl.classtransform.util.ZipArchive;
+import org.gradle.api.Project;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * A build scoped service which shares the library class providers of all downgrade tasks.<br>
+ * Every library jar is opened and indexed only once per build (keyed by path, modification time and size)
+ * and recently used class bytes are kept in a memory bounded cache. The type hierarchy of the libraries is
+ * indexed once per classpath.
+ */
+public abstract class ClassProviderService implements BuildService<ClassProviderService.Parameters>, AutoCloseable {
+
+    public static final String NAME = "javaDowngraderClassProvider";
+
+    public static Provider<ClassProviderService> register(final Project project) {
+        return project.getGradle().getSharedServices().registerIfAbsent(NAME, ClassProviderService.class, spec -> {
+            spec.getParameters().getMaxCacheSize().convention(256L * 1024 * 1024);
+        });
+    }
+
+    private final Map<String, ZipArchive> archives = new ConcurrentHashMap<>();
+    private final Map<String, TypeHierarchyIndex> typeHierarchyIndexes = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> classCache = new LinkedHashMap<>(1024, 0.75F, true);
+    private long classCacheSize;
+
+    /**
+     * Creates a class provider for the given classpath. Jars are resolved when this method is called.
+     *
+     * @param classpath The jars and directories to provide the classes of
+     * @return The class provider which falls back to the classes of the current JVM
+     */
+    public IClassProvider createClassProvider(final Collection<File> classpath) {
+        final List<ClasspathEntry> entries = new ArrayList<>(classpath.size());
+        for (File file : classpath) {
+            if (file.isDirectory()) {
+                entries.add(new DirectoryEntry(file.toPath()));
+            } else if (file.isFile()) {
+                final String key = getArchiveKey(file);
+                final ZipArchive archive = this.archives.computeIfAbsent(key, k -> {
+                    try {
+                        return new ZipArchive(file.toPath());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Failed to open " + file, e);
+                    }
+                });
+                entries.add(new ArchiveEntry(key, archive));
+            }
+        }
+        return new SharedClassProvider(entries);
+    }
+
+    /**
+     * Returns the shared type hierarchy index of the given classpath.<br>
+     * Use it as parent of an index which contains the classes to downgrade, as those are not part of it.
+     *
+     * @param classpath The jars and directories to index the types of
+     * @return The type hierarchy index which falls back to the classes of the current JVM
+     */
+    public TypeHierarchyIndex getTypeHierarchyIndex(final Collection<File> classpath) {
+        final StringBuilder key = new StringBuilder();
+        for (File file : classpath) {
+            if (file.isDirectory()) {
+                key.append(file.getAbsolutePath()).append('\n');
+            } else if (file.isFile()) {
+                key.append(getArchiveKey(file)).append('\n');
+            }
+        }
+        return this.typeHierarchyIndexes.computeIfAbsent(key.toString(), k -> new TypeHierarchyIndex(this.createClassProvider(classpath)));
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (ZipArchive archive : this.archives.values()) {
+            archive.close();
+        }
+        this.archives.clear();
+        this.typeHierarchyIndexes.clear();
+        synchronized (this.classCache) {
+            this.classCache.clear();
+        }
+    }
+
+    private byte[] readCached(final String key, final ZipArchive archive, final ZipArchive.Entry entry) throws IOException {
+        final String cacheKey = key + '!' + entry.getName();
+        synchronized (this.classCache) {
+            final byte[] cached = this.classCache.get(cacheKey);
+            if (cached != null) return cached;
+        }
+
+        final byte[] bytecode = archive.read(entry);
+        final long maxSize = getParameters().getMaxCacheSize().get();
+        synchronized (this.classCache) {
+            if (this.classCache.put(cacheKey, bytecode) == null) {
+                this.classCacheSize += bytecode.length;
+            }
+            final Iterator<byte[]> it = this.classCache.values().iterator();
+            while (this.classCacheSize > maxSize && it.hasNext()) {
+                this.classCacheSize -= it.next().length;
+                it.remove();
+            }
+        }
+        return bytecode;
+    }
+
+    private static String getArchiveKey(final File file) {
+        return file.getAbsolutePath() + ';' + file.lastModified() + ';' + file.length();
+    }
+
+    public interface Parameters extends BuildServiceParameters {
+
+        /**
+         * @return The maximum amount of class bytes to keep in memory
+         */
+        Property<Long> getMaxCacheSize();
+
+    }
+
+    private interface ClasspathEntry {
+
+        byte[] getClass(final String classFilename) throws IOException;
+
+        void collectClasses(final Map<String, Supplier<byte[]>> classes) throws IOException;
+
+    }
+
+    private final class ArchiveEntry implements ClasspathEntry {
+
+        private final String key;
+        private final ZipArchive archive;
+
+        private ArchiveEntry(final String key, final ZipArchive archive) {
+            this.key = key;
+            this.archive = archive;
+        }
+
+        @Override
+        public byte[] getClass(final String classFilename) throws IOException {
+            final ZipArchive.Entry entry = this.archive.getEntry(classFilename);
+            return entry != null ? readCached(this.key, this.archive, entry) : null;
+        }
+
+        @Override
+        public void collectClasses(final Map<String, Supplier<byte[]>> classes) {
+            for (ZipArchive.Entry entry : this.archive.getEntries()) {
+                if (!entry.getName().endsWith(".class")) continue;
+                classes.putIfAbsent(ClassNameUtil.toClassName(entry.getName()), () -> {
+                    try {
+                        return readCached(this.key, this.archive, entry);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+        }
+
+    }
+
+    private static final class DirectoryEntry implements ClasspathEntry {
+
+        private final Path root;
+
+        private DirectoryEntry(final Path root) {
+            this.root = root;
+        }
+
+        @Override
+        public byte[] getClass(final String classFilename) throws IOException {
+            final Path path = this.root.resolve(classFilename);
+            return Files.isRegularFile(path) ? Files.readAllBytes(path) : null;
+        }
+
+        @Override
+        public void collectClasses(final Map<String, Supplier<byte[]>> classes) throws IOException {
+            try (Stream<Path> stream = Files.walk(this.root)) {
+                stream.filter(path -> path.toString().endsWith(".class")).forEach(path -> {
+                    final String relative = ClassNameUtil.slashName(this.root.relativize(path));
+                    classes.putIfAbsent(ClassNameUtil.toClassName(relative), () -> {
+                        try {
+                            return Files.readAllBytes(path);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                });
+            }
+        }
+
+    }
+
+    private static final class SharedClassProvider implements IClassProvider {
+
+        private final List<ClasspathEntry> entries;
+        private final IClassProvider parent = new BasicClassProvider();
+
+        private SharedClassProvider(final List<ClasspathEntry> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public byte[] getClass(final String name) throws ClassNotFoundException {
+            final String classFilename = ClassNameUtil.toClassFilename(name);
+            try {
+                for (ClasspathEntry entry : this.entries) {
+                    final byte[] bytecode = entry.getClass(classFilename);
+                    if (bytecode != null) return bytecode;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this.parent.getClass(name);
+        }
+
+        @Override
+        public Map<String, Supplier<byte[]>> getAllClasses() {
+            final Map<String, Supplier<byte[]>> classes = new HashMap<>();
+            try {
+                for (ClasspathEntry entry : this.entries) {
+                    entry.collectClasses(classes);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            this.parent.getAllClasses().forEach(classes::putIfAbsent);
+            return classes;
+        }
+
+    }
+
+}
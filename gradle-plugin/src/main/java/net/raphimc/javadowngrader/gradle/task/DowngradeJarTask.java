@@ -18,43 +18,50 @@
 package net.raphimc.javadowngrader.gradle.task;
 
 import net.lenni0451.classtransform.TransformerManager;
-import net.lenni0451.classtransform.additionalclassprovider.LazyFileClassProvider;
-import net.lenni0451.classtransform.additionalclassprovider.PathClassProvider;
-import net.lenni0451.classtransform.utils.tree.BasicClassProvider;
+import net.lenni0451.classtransform.utils.tree.IClassProvider;
+import net.raphimc.javadowngrader.gradle.service.ClassProviderService;
+import net.raphimc.javadowngrader.impl.classtransform.DowngradeCache;
 import net.raphimc.javadowngrader.impl.classtransform.JavaDowngraderTransformer;
+import net.raphimc.javadowngrader.impl.classtransform.classprovider.EmptyClassProvider;
+import net.raphimc.javadowngrader.impl.classtransform.classprovider.ZipArchiveClassProvider;
 import net.raphimc.javadowngrader.impl.classtransform.util.ClassNameUtil;
+import net.raphimc.javadowngrader.impl.classtransform.util.TypeHierarchyIndex;
+import net.raphimc.javadowngrader.impl.classtransform.util.ZipArchive;
+import net.raphimc.javadowngrader.impl.classtransform.util.ZipArchiveWriter;
 import net.raphimc.javadowngrader.runtime.RuntimeRoot;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.file.RegularFileProperty;
 import org.gradle.api.provider.Property;
-import org.gradle.api.tasks.Input;
-import org.gradle.api.tasks.InputFile;
-import org.gradle.api.tasks.InputFiles;
-import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.*;
 import org.objectweb.asm.Opcodes;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UncheckedIOException;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.nio.file.*;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.stream.Stream;
+import java.util.Deque;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.*;
+import java.util.zip.Deflater;
 
+@CacheableTask
 public abstract class DowngradeJarTask extends DefaultTask {
 
     @InputFile
+    @PathSensitive(PathSensitivity.NONE)
     public abstract RegularFileProperty getInput();
 
     @Input
     public abstract Property<String> getOutputSuffix();
 
-    @InputFiles
+    @CompileClasspath
     public abstract ConfigurableFileCollection getCompileClassPath();
 
     @Input
@@ -63,90 +70,146 @@ public abstract class DowngradeJarTask extends DefaultTask {
     @Input
     public abstract Property<Boolean> getCopyRuntimeClasses();
 
+    @Input
+    public abstract Property<Integer> getCompressionLevel();
+
+    /**
+     * The amount of threads used to transform the classes. Defaults to the maximum worker count of the build.
+     */
+    @Internal
+    public abstract Property<Integer> getParallelism();
+
+    @Internal
+    public abstract Property<ClassProviderService> getClassProviderService();
+
+    @Internal
+    @Optional
+    public abstract DirectoryProperty getCacheDirectory();
+
+    @Internal
+    public abstract Property<Long> getCacheSize();
+
     public DowngradeJarTask() {
         getOutputSuffix().convention("-downgraded");
         getTargetVersion().convention(Opcodes.V1_8);
         getCopyRuntimeClasses().convention(true);
+        getCompressionLevel().convention(Deflater.DEFAULT_COMPRESSION);
+        getParallelism().convention(getProject().getGradle().getStartParameter().getMaxWorkerCount());
+        getCacheSize().convention(1024L * 1024 * 1024);
+
+        final Provider<ClassProviderService> classProviderService = ClassProviderService.register(getProject());
+        getClassProviderService().convention(classProviderService);
+        usesService(classProviderService);
+    }
+
+    @OutputFile
+    public File getOutputFile() {
+        final File inputFile = getInput().getAsFile().get();
+        final String outputName = inputFile.getName().substring(0, inputFile.getName().length() - 4) + getOutputSuffix().get();
+        return new File(inputFile.getParentFile(), outputName + ".jar");
     }
 
     @TaskAction
-    public void run() throws IOException, URISyntaxException {
+    public void run() throws IOException {
         final File inputFile = getInput().getAsFile().get();
         System.out.println("Downgrading jar: " + inputFile);
 
-        try (FileSystem inFs = FileSystems.newFileSystem(inputFile.toPath(), (ClassLoader) null)) {
-            final Path inRoot = inFs.getRootDirectories().iterator().next();
-
-            final Collection<String> runtimeDeps = new HashSet<>();
+        try (ZipArchive inArchive = new ZipArchive(inputFile.toPath())) {
+            final Collection<String> runtimeDeps = Collections.newSetFromMap(new ConcurrentHashMap<>());
+            final ClassProviderService classProviderService = getClassProviderService().get();
+            final Set<File> classpath = getCompileClassPath().getFiles();
+            final IClassProvider inputClassProvider = new ZipArchiveClassProvider(inArchive, new EmptyClassProvider());
             final TransformerManager transformerManager = new TransformerManager(
-                    new PathClassProvider(inRoot, new LazyFileClassProvider(getCompileClassPath().getFiles(), new BasicClassProvider()))
-            );
-            transformerManager.addBytecodeTransformer(
-                    JavaDowngraderTransformer.builder(transformerManager)
-                            .targetVersion(getTargetVersion().get())
-                            .classFilter(c -> Files.isRegularFile(inRoot.resolve(ClassNameUtil.toClassFilename(c))))
-                            .depCollector(runtimeDeps::add)
-                            .build()
+                    new ZipArchiveClassProvider(inArchive, classProviderService.createClassProvider(classpath))
             );
-
-            final String outputName = inputFile.getName().substring(0, inputFile.getName().length() - 4) + getOutputSuffix().get();
-            final File outputFile = new File(inputFile.getParentFile(), outputName + ".jar");
-
-            try (FileSystem outFs = FileSystems.newFileSystem(new URI("jar:" + outputFile.toURI()), Collections.singletonMap("create", "true"))) {
-                final Path outRoot = outFs.getRootDirectories().iterator().next();
-
-                // Downgrade classes
-                try (Stream<Path> stream = Files.walk(inRoot)) {
-                    stream.forEach(path -> {
+            final JavaDowngraderTransformer.Builder builder = JavaDowngraderTransformer.builder(transformerManager)
+                    .targetVersion(getTargetVersion().get())
+                    .classFilter(c -> inArchive.getEntry(ClassNameUtil.toClassFilename(c)) != null)
+                    .depCollector(runtimeDeps::add)
+                    .typeHierarchyIndex(new TypeHierarchyIndex(inputClassProvider, classProviderService.getTypeHierarchyIndex(classpath)));
+            if (getCacheDirectory().isPresent()) {
+                builder.cache(new DowngradeCache(getCacheDirectory().get().getAsFile().toPath(), getCacheSize().get()), DowngradeCache.classpathHash(classpath, inputClassProvider.getAllClasses()));
+            }
+            transformerManager.addBytecodeTransformer(builder.build());
+
+            final File outputFile = getOutputFile();
+            final int targetVersion = getTargetVersion().get();
+            final ExecutorService threadPool = Executors.newFixedThreadPool(getParallelism().get());
+            // New entries get a constant time and all entries are written in the order of the input jar to keep the output reproducible
+            try (ZipArchiveWriter writer = new ZipArchiveWriter(outputFile.toPath(), getCompressionLevel().get(), ZipArchiveWriter.REPRODUCIBLE_TIME)) {
+                // Downgrade classes in parallel, unchanged entries are copied without recompressing them
+                final int maxPendingEntries = getParallelism().get() * 4;
+                final Deque<Future<EntryWriter>> pending = new ArrayDeque<>(maxPendingEntries);
+                for (ZipArchive.Entry entry : inArchive.getEntries()) {
+                    if (pending.size() >= maxPendingEntries) {
+                        writeEntry(pending.poll(), writer);
+                    }
+                    pending.add(threadPool.submit(() -> {
+                        final String name = entry.getName();
+                        final byte[] raw = inArchive.readRaw(entry);
+                        if (entry.isDirectory() || !name.endsWith(".class") || name.contains("META-INF/versions/")) {
+                            return out -> out.writeRaw(entry, raw);
+                        }
+                        final byte[] header = ZipArchive.decompress(entry, raw, 8);
+                        if (header.length == 8 && ((header[6] & 0xFF) << 8 | header[7] & 0xFF) <= targetVersion) {
+                            return out -> out.writeRaw(entry, raw);
+                        }
+                        final String className = ClassNameUtil.toClassName(name);
+                        final byte[] result;
                         try {
-                            final String relative = ClassNameUtil.slashName(inRoot.relativize(path));
-                            final Path dest = outRoot.resolve(relative);
-                            if (Files.isDirectory(path)) {
-                                Files.createDirectories(dest);
-                                return;
-                            }
-                            final Path parent = dest.getParent();
-                            if (parent != null) {
-                                Files.createDirectories(parent);
-                            }
-                            if (!relative.endsWith(".class") || relative.contains("META-INF/versions/")) {
-                                Files.copy(path, dest, StandardCopyOption.REPLACE_EXISTING);
-                                return;
-                            }
-                            final String className = ClassNameUtil.toClassName(relative);
-                            final byte[] bytecode = Files.readAllBytes(path);
-                            final byte[] result;
-                            try {
-                                result = transformerManager.transform(className, bytecode);
-                            } catch (Throwable e) {
-                                throw new RuntimeException("Failed to transform " + className, e);
-                            }
-                            Files.write(dest, result != null ? result : bytecode);
-                        } catch (IOException e) {
-                            throw new UncheckedIOException(e);
+                            result = transformerManager.transform(className, ZipArchive.decompress(entry, raw, Integer.MAX_VALUE));
+                        } catch (Throwable e) {
+                            throw new RuntimeException("Failed to transform " + className, e);
+                        }
+                        if (result == null) {
+                            return out -> out.writeRaw(entry, raw);
                         }
-                    });
+                        final ZipArchiveWriter.CompressedEntry compressed = writer.compress(entry, result);
+                        return out -> out.write(compressed);
+                    }));
+                }
+                while (!pending.isEmpty()) {
+                    writeEntry(pending.poll(), writer);
                 }
 
                 // Copy runtime classes
                 if (getCopyRuntimeClasses().get()) {
-                    for (final String runtimeDep : runtimeDeps) {
+                    for (final String runtimeDep : new TreeSet<>(runtimeDeps)) {
                         final String classPath = runtimeDep.concat(".class");
+                        if (inArchive.getEntry(classPath) != null) continue;
                         try (InputStream is = RuntimeRoot.class.getResourceAsStream("/" + classPath)) {
                             if (is == null) {
                                 throw new IllegalStateException("Missing runtime class " + runtimeDep);
                             }
-                            final Path dest = outRoot.resolve(classPath);
-                            final Path parent = dest.getParent();
-                            if (parent != null) {
-                                Files.createDirectories(parent);
-                            }
-                            Files.copy(is, dest, StandardCopyOption.REPLACE_EXISTING);
+                            writer.write(classPath, is);
                         }
                     }
                 }
+            } finally {
+                threadPool.shutdownNow();
+            }
+        }
+    }
+
+    private static void writeEntry(final Future<EntryWriter> future, final ZipArchiveWriter writer) throws IOException {
+        try {
+            future.get().write(writer);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
         }
     }
 
+    @FunctionalInterface
+    private interface EntryWriter {
+        void write(final ZipArchiveWriter writer) throws IOException;
+    }
+
 }
@@ -17,105 +17,196 @@
  */
 package net.raphimc.javadowngrader.gradle.task;
 
-import net.lenni0451.classtransform.TransformerManager;
-import net.lenni0451.classtransform.additionalclassprovider.LazyFileClassProvider;
 import net.lenni0451.classtransform.additionalclassprovider.PathClassProvider;
-import net.lenni0451.classtransform.utils.tree.BasicClassProvider;
-import net.raphimc.javadowngrader.impl.classtransform.JavaDowngraderTransformer;
-import net.raphimc.javadowngrader.impl.classtransform.util.ClassNameUtil;
+import net.lenni0451.classtransform.utils.tree.IClassProvider;
+import net.raphimc.javadowngrader.gradle.service.ClassProviderService;
+import net.raphimc.javadowngrader.gradle.worker.DowngradeClassesAction;
+import net.raphimc.javadowngrader.impl.classtransform.DowngradeCache;
+import net.raphimc.javadowngrader.impl.classtransform.classprovider.EmptyClassProvider;
 import net.raphimc.javadowngrader.runtime.RuntimeRoot;
 import org.gradle.api.DefaultTask;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileType;
 import org.gradle.api.provider.Property;
-import org.gradle.api.tasks.Input;
-import org.gradle.api.tasks.SourceSet;
-import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.*;
+import org.gradle.work.ChangeType;
+import org.gradle.work.FileChange;
+import org.gradle.work.Incremental;
+import org.gradle.work.InputChanges;
+import org.gradle.workers.WorkQueue;
+import org.gradle.workers.WorkerExecutor;
 import org.objectweb.asm.Opcodes;
 
+import javax.inject.Inject;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
-import java.util.Collection;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.stream.Stream;
 
+@CacheableTask
 public abstract class DowngradeSourceSetTask extends DefaultTask {
-    @Input
+    @Internal
     public abstract Property<SourceSet> getSourceSet();
 
+    @Incremental
+    @InputFiles
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public abstract ConfigurableFileCollection getClassesDirs();
+
+    @CompileClasspath
+    public abstract ConfigurableFileCollection getCompileClassPath();
+
+    /**
+     * The directory to write the downgraded classes to, for example {@code build/javaDowngrader/<source set name>}.<br>
+     * If not set, the classes are downgraded in place, which prevents the task from being up to date or cached.
+     */
+    @Optional
+    @OutputDirectory
+    public abstract DirectoryProperty getOutputDirectory();
+
     @Input
     public abstract Property<Integer> getTargetVersion();
 
     @Input
     public abstract Property<Boolean> getCopyRuntimeClasses();
 
+    @Internal
+    public abstract Property<Integer> getParallelism();
+
+    @Internal
+    public abstract Property<ClassProviderService> getClassProviderService();
+
+    @Internal
+    @Optional
+    public abstract DirectoryProperty getCacheDirectory();
+
+    @Internal
+    public abstract Property<Long> getCacheSize();
+
+    @Inject
+    protected abstract WorkerExecutor getWorkerExecutor();
+
     public DowngradeSourceSetTask() {
+        getClassesDirs().from(getSourceSet().map(sourceSet -> sourceSet.getOutput().getClassesDirs()));
+        getCompileClassPath().from(getSourceSet().map(SourceSet::getCompileClasspath));
         getTargetVersion().convention(Opcodes.V1_8);
         getCopyRuntimeClasses().convention(true);
+        getParallelism().convention(getProject().getGradle().getStartParameter().getMaxWorkerCount());
+        getCacheSize().convention(1024L * 1024 * 1024);
+
+        final Provider<ClassProviderService> classProviderService = ClassProviderService.register(getProject());
+        getClassProviderService().convention(classProviderService);
+        usesService(classProviderService);
     }
 
     @TaskAction
-    public void run() throws IOException {
-        for (File classesDir : getSourceSet().get().getOutput().getClassesDirs()) {
-            System.out.println("Downgrading source set: " + this.getProject().getProjectDir().toPath().relativize(classesDir.toPath()));
-            final Path inRoot = classesDir.toPath();
-
-            final Collection<String> runtimeDeps = new HashSet<>();
-            final TransformerManager transformerManager = new TransformerManager(
-                    new PathClassProvider(inRoot, new LazyFileClassProvider(getSourceSet().get().getCompileClasspath().getFiles(), new BasicClassProvider()))
-            );
-            transformerManager.addBytecodeTransformer(
-                    JavaDowngraderTransformer.builder(transformerManager)
-                            .targetVersion(getTargetVersion().get())
-                            .classFilter(c -> Files.isRegularFile(inRoot.resolve(ClassNameUtil.toClassFilename(c))))
-                            .depCollector(runtimeDeps::add)
-                            .build()
-            );
-
-            // Downgrade classes
-            try (Stream<Path> stream = Files.walk(inRoot)) {
-                stream.forEach(path -> {
-                    try {
-                        final String relative = ClassNameUtil.slashName(inRoot.relativize(path));
-                        if (!relative.endsWith(".class")) return;
-                        final String className = ClassNameUtil.toClassName(relative);
-                        final byte[] bytecode = Files.readAllBytes(path);
-                        final byte[] result;
-                        try {
-                            result = transformerManager.transform(className, bytecode);
-                        } catch (Throwable e) {
-                            throw new RuntimeException("Failed to transform " + className, e);
-                        }
-                        if (result != null) {
-                            Files.write(path, result);
-                        }
-                    } catch (IOException e) {
-                        throw new UncheckedIOException(e);
+    public void run(final InputChanges inputChanges) throws IOException {
+        final Path outputDir = getOutputDirectory().isPresent() ? getOutputDirectory().get().getAsFile().toPath() : null;
+        if (outputDir != null && !inputChanges.isIncremental()) {
+            if (Files.exists(outputDir)) {
+                try (Stream<Path> stream = Files.walk(outputDir)) {
+                    for (Path path : (Iterable<Path>) stream.sorted(Comparator.reverseOrder())::iterator) {
+                        Files.delete(path);
                     }
-                });
+                }
             }
+            Files.createDirectories(outputDir);
+        }
 
-            // Copy runtime classes
-            if (getCopyRuntimeClasses().get()) {
-                for (final String runtimeDep : runtimeDeps) {
-                    final String classPath = runtimeDep.concat(".class");
-                    try (InputStream is = RuntimeRoot.class.getResourceAsStream("/" + classPath)) {
-                        if (is == null) {
-                            throw new IllegalStateException("Missing runtime class " + runtimeDep);
-                        }
-                        final Path dest = inRoot.resolve(classPath);
-                        final Path parent = dest.getParent();
-                        if (parent != null) {
-                            Files.createDirectories(parent);
-                        }
-                        Files.copy(is, dest, StandardCopyOption.REPLACE_EXISTING);
+        final List<FileChange> classChanges = new ArrayList<>();
+        for (FileChange change : inputChanges.getFileChanges(getClassesDirs())) {
+            if (change.getFileType() == FileType.DIRECTORY) continue;
+            final String relative = change.getNormalizedPath();
+            if (change.getChangeType() == ChangeType.REMOVED) {
+                if (outputDir != null) {
+                    Files.deleteIfExists(outputDir.resolve(relative));
+                }
+            } else if (relative.endsWith(".class") && !relative.contains("META-INF/versions/")) {
+                classChanges.add(change);
+            } else if (outputDir != null) {
+                final Path dest = outputDir.resolve(relative);
+                Files.createDirectories(dest.getParent());
+                Files.copy(change.getFile().toPath(), dest, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        System.out.println("Downgrading " + classChanges.size() + " class(es) of source set " + getSourceSet().get().getName() + (inputChanges.isIncremental() ? " incrementally" : ""));
+
+        // Split the classes into one batch per worker so every worker only has to set up its class providers once
+        // Build services can only be passed to work actions which don't use classloader isolation
+        final WorkQueue workQueue = getWorkerExecutor().noIsolation();
+        final String classpathHash = getCacheDirectory().isPresent() ? this.createClasspathHash() : "";
+        final int batchCount = Math.max(1, Math.min(getParallelism().get(), classChanges.size()));
+        final List<File> runtimeDepsFiles = new ArrayList<>();
+        for (int i = 0; i < batchCount; i++) {
+            final List<String> classFiles = new ArrayList<>();
+            final List<String> relativePaths = new ArrayList<>();
+            for (int j = i; j < classChanges.size(); j += batchCount) {
+                classFiles.add(classChanges.get(j).getFile().getAbsolutePath());
+                relativePaths.add(classChanges.get(j).getNormalizedPath());
+            }
+            if (classFiles.isEmpty()) continue;
+
+            final File runtimeDepsFile = new File(getTemporaryDir(), "runtime-deps-" + i + ".txt");
+            runtimeDepsFiles.add(runtimeDepsFile);
+            workQueue.submit(DowngradeClassesAction.class, parameters -> {
+                parameters.getClassesDirs().from(getClassesDirs());
+                parameters.getCompileClassPath().from(getCompileClassPath());
+                parameters.getClassProviderService().set(getClassProviderService());
+                parameters.getClassFiles().set(classFiles);
+                parameters.getRelativePaths().set(relativePaths);
+                parameters.getOutputDirectory().set(getOutputDirectory());
+                parameters.getRuntimeDepsFile().set(runtimeDepsFile);
+                parameters.getTargetVersion().set(getTargetVersion());
+                parameters.getCacheDirectory().set(getCacheDirectory());
+                parameters.getCacheSize().set(getCacheSize());
+                parameters.getClasspathHash().set(classpathHash);
+            });
+        }
+        workQueue.await();
+
+        // Copy runtime classes
+        if (getCopyRuntimeClasses().get() && !runtimeDepsFiles.isEmpty()) {
+            final Set<String> runtimeDeps = new TreeSet<>();
+            for (File runtimeDepsFile : runtimeDepsFiles) {
+                runtimeDeps.addAll(Files.readAllLines(runtimeDepsFile.toPath(), StandardCharsets.UTF_8));
+            }
+            final Path runtimeRoot = outputDir != null ? outputDir : getClassesDirs().getFiles().iterator().next().toPath();
+            for (final String runtimeDep : runtimeDeps) {
+                final String classPath = runtimeDep.concat(".class");
+                try (InputStream is = RuntimeRoot.class.getResourceAsStream("/" + classPath)) {
+                    if (is == null) {
+                        throw new IllegalStateException("Missing runtime class " + runtimeDep);
+                    }
+                    final Path dest = runtimeRoot.resolve(classPath);
+                    final Path parent = dest.getParent();
+                    if (parent != null) {
+                        Files.createDirectories(parent);
                     }
+                    Files.copy(is, dest, StandardCopyOption.REPLACE_EXISTING);
                 }
             }
         }
     }
 
+    private String createClasspathHash() throws IOException {
+        // The type hierarchy of all classes is part of the fingerprint, as the frames of the changed classes depend on it
+        final List<File> classesDirs = new ArrayList<>(getClassesDirs().getFiles());
+        IClassProvider classesProvider = new EmptyClassProvider();
+        for (int i = classesDirs.size() - 1; i >= 0; i--) {
+            classesProvider = new PathClassProvider(classesDirs.get(i).toPath(), classesProvider);
+        }
+        return DowngradeCache.classpathHash(getCompileClassPath().getFiles(), classesProvider.getAllClasses());
+    }
+
 }
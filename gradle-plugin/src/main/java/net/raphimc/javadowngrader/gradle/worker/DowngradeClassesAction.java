@@ -0,0 +1,148 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.gradle.worker;
+
+import net.lenni0451.classtransform.TransformerManager;
+import net.lenni0451.classtransform.additionalclassprovider.PathClassProvider;
+import net.lenni0451.classtransform.utils.tree.IClassProvider;
+import net.raphimc.javadowngrader.gradle.service.ClassProviderService;
+import net.raphimc.javadowngrader.impl.classtransform.DowngradeCache;
+import net.raphimc.javadowngrader.impl.classtransform.JavaDowngraderTransformer;
+import net.raphimc.javadowngrader.impl.classtransform.classprovider.EmptyClassProvider;
+import net.raphimc.javadowngrader.impl.classtransform.util.ClassNameUtil;
+import net.raphimc.javadowngrader.impl.classtransform.util.TypeHierarchyIndex;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Downgrades a batch of class files in a worker.
+ */
+public abstract class DowngradeClassesAction implements WorkAction<DowngradeClassesAction.Parameters> {
+
+    @Override
+    public void execute() {
+        final Parameters parameters = getParameters();
+        final List<Path> roots = new ArrayList<>();
+        for (File classesDir : parameters.getClassesDirs()) {
+            roots.add(classesDir.toPath());
+        }
+
+        final Collection<String> runtimeDeps = new TreeSet<>();
+        final ClassProviderService classProviderService = parameters.getClassProviderService().get();
+        final Set<File> classpath = parameters.getCompileClassPath().getFiles();
+        IClassProvider classProvider = classProviderService.createClassProvider(classpath);
+        IClassProvider classesProvider = new EmptyClassProvider();
+        for (int i = roots.size() - 1; i >= 0; i--) {
+            classProvider = new PathClassProvider(roots.get(i), classProvider);
+            classesProvider = new PathClassProvider(roots.get(i), classesProvider);
+        }
+        final TransformerManager transformerManager = new TransformerManager(classProvider);
+        final JavaDowngraderTransformer.Builder builder = JavaDowngraderTransformer.builder(transformerManager)
+                .targetVersion(parameters.getTargetVersion().get())
+                .classFilter(c -> roots.stream().anyMatch(root -> Files.isRegularFile(root.resolve(ClassNameUtil.toClassFilename(c)))))
+                .depCollector(runtimeDeps::add)
+                .typeHierarchyIndex(new TypeHierarchyIndex(classesProvider, classProviderService.getTypeHierarchyIndex(classpath)));
+        try {
+            if (parameters.getCacheDirectory().isPresent()) {
+                builder.cache(new DowngradeCache(parameters.getCacheDirectory().get().getAsFile().toPath(), parameters.getCacheSize().get()), parameters.getClasspathHash().get());
+            }
+            transformerManager.addBytecodeTransformer(builder.build());
+
+            final Path outputDir = parameters.getOutputDirectory().isPresent() ? parameters.getOutputDirectory().get().getAsFile().toPath() : null;
+            final List<String> classFiles = parameters.getClassFiles().get();
+            final List<String> relativePaths = parameters.getRelativePaths().get();
+            for (int i = 0; i < classFiles.size(); i++) {
+                final Path path = new File(classFiles.get(i)).toPath();
+                final String relative = relativePaths.get(i);
+                final String className = ClassNameUtil.toClassName(relative);
+                final byte[] bytecode = Files.readAllBytes(path);
+                final byte[] result;
+                try {
+                    result = transformerManager.transform(className, bytecode);
+                } catch (Throwable e) {
+                    throw new RuntimeException("Failed to transform " + className, e);
+                }
+                if (outputDir == null) {
+                    if (result != null) {
+                        Files.write(path, result);
+                    }
+                } else {
+                    final Path dest = outputDir.resolve(relative);
+                    Files.createDirectories(dest.getParent());
+                    Files.write(dest, result != null ? result : bytecode);
+                }
+            }
+
+            Files.write(parameters.getRuntimeDepsFile().get().getAsFile().toPath(), runtimeDeps, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public interface Parameters extends WorkParameters {
+
+        ConfigurableFileCollection getClassesDirs();
+
+        ConfigurableFileCollection getCompileClassPath();
+
+        Property<ClassProviderService> getClassProviderService();
+
+        /**
+         * @return The absolute paths of the class files to downgrade
+         */
+        ListProperty<String> getClassFiles();
+
+        /**
+         * @return The paths of the class files relative to their classes dir
+         */
+        ListProperty<String> getRelativePaths();
+
+        /**
+         * @return The directory to write the downgraded classes to. The classes are downgraded in place if not present
+         */
+        DirectoryProperty getOutputDirectory();
+
+        RegularFileProperty getRuntimeDepsFile();
+
+        Property<Integer> getTargetVersion();
+
+        DirectoryProperty getCacheDirectory();
+
+        Property<Long> getCacheSize();
+
+        /**
+         * @return The fingerprint of the compile classpath and the type hierarchy of the classes, computed once by the task
+         */
+        Property<String> getClasspathHash();
+
+    }
+
+}
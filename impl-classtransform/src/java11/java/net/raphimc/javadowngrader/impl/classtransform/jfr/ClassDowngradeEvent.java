@@ -0,0 +1,75 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.impl.classtransform.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * JDK Flight Recorder event for a class downgraded by the JavaDowngraderTransformer.<br>
+ * The duration of the event is the time spent in the transformer, including cache lookups.
+ */
+@Name("net.raphimc.javadowngrader.ClassDowngrade")
+@Label("Class Downgrade")
+@Description("A class downgraded by the JavaDowngrader")
+@Category("JavaDowngrader")
+@StackTrace(false)
+public class ClassDowngradeEvent extends Event {
+
+    @Label("Class Name")
+    private String className;
+
+    @Label("Source Version")
+    private int sourceVersion;
+
+    @Label("Target Version")
+    private int targetVersion;
+
+    @Label("Bytes In")
+    @DataAmount
+    private int bytesIn;
+
+    @Label("Bytes Out")
+    @DataAmount
+    private int bytesOut;
+
+    @Label("Replacements")
+    @Description("The amount of replaced method calls")
+    private int replacements;
+
+    @Label("Frames Recomputed")
+    private boolean framesRecomputed;
+
+    @Label("Mode")
+    @Description("How the class was downgraded: tree, streaming, versionOnly or cached")
+    private String mode;
+
+    public void setClass(final String className, final int sourceVersion, final int targetVersion, final int bytesIn) {
+        this.className = className;
+        this.sourceVersion = sourceVersion;
+        this.targetVersion = targetVersion;
+        this.bytesIn = bytesIn;
+    }
+
+    public void setResult(final String mode, final int bytesOut, final int replacements, final boolean framesRecomputed) {
+        this.mode = mode;
+        this.bytesOut = bytesOut;
+        this.replacements = replacements;
+        this.framesRecomputed = framesRecomputed;
+    }
+
+}
@@ -0,0 +1,418 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.impl.classtransform;
+
+import net.raphimc.javadowngrader.JavaDowngrader;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * A persistent content addressed cache of downgraded classes.<br>
+ * Entries are keyed by a hash of the input class, the downgrade settings, the JavaDowngrader implementation and a
+ * fingerprint of the classpath used for frame computation. They are written atomically, so multiple JVMs can share
+ * the same cache directory. When the cache grows over its maximum size the least recently used entries are evicted.
+ */
+public class DowngradeCache {
+
+    private static final int MAGIC = 0x4A444331; // JDC1
+    private static final String LOCK_FILE = ".lock";
+    private static final String TEMP_SUFFIX = ".tmp";
+    static final String IMPLEMENTATION_FINGERPRINT = implementationFingerprint();
+    private static final int MAX_FILE_HASHES = 65536;
+    private static final Map<String, String> FILE_HASHES = new LinkedHashMap<String, String>(1024, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+            return this.size() > MAX_FILE_HASHES;
+        }
+    };
+
+    private final Path directory;
+    private final long maxSize;
+    private final AtomicLong size = new AtomicLong();
+
+    /**
+     * @param directory The cache directory
+     * @param maxSize   The maximum size of the cache in bytes
+     * @throws IOException If the cache directory could not be created
+     */
+    public DowngradeCache(final Path directory, final long maxSize) throws IOException {
+        this(directory, maxSize, true);
+    }
+
+    /**
+     * @param directory   The cache directory
+     * @param maxSize     The maximum size of the cache in bytes
+     * @param computeSize If the size of the cache should be computed now. Otherwise it is only known after the next {@link #evict()}
+     * @throws IOException If the cache directory could not be created
+     */
+    DowngradeCache(final Path directory, final long maxSize, final boolean computeSize) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        Files.createDirectories(directory);
+        if (computeSize) {
+            this.size.set(this.computeSize());
+        }
+    }
+
+    /**
+     * Creates the cache key for a class.
+     *
+     * @param bytecode      The input class
+     * @param settings      The downgrade settings which influence the output
+     * @param classpathHash The fingerprint of the classpath
+     * @return The cache key
+     */
+    public String createKey(final byte[] bytecode, final String settings, final String classpathHash) {
+        final MessageDigest digest = sha256();
+        digest.update(bytecode);
+        digest.update((byte) 0);
+        digest.update(settings.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(IMPLEMENTATION_FINGERPRINT.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(classpathHash.getBytes(StandardCharsets.UTF_8));
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @param key The cache key
+     * @return The cached entry or null if there is none
+     */
+    public Entry get(final String key) {
+        final Path file = this.resolve(key);
+        final byte[] data;
+        try {
+            data = Files.readAllBytes(file);
+        } catch (IOException e) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (in.readInt() != MAGIC) throw new IOException("Invalid magic");
+            final int depCount = in.readInt();
+            final List<String> runtimeDeps = new ArrayList<>(depCount);
+            for (int i = 0; i < depCount; i++) {
+                runtimeDeps.add(in.readUTF());
+            }
+            final byte[] bytecode = new byte[in.readInt()];
+            in.readFully(bytecode);
+            if (in.available() != 0) throw new IOException("Trailing data");
+
+            try {
+                // The modification time is used to track the last access for the LRU eviction
+                Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (IOException ignored) {
+            }
+            return new Entry(bytecode, runtimeDeps);
+        } catch (IOException e) {
+            // Corrupt entries are treated as a miss and overwritten by the next put
+            return null;
+        }
+    }
+
+    /**
+     * Stores an entry in the cache. Failures are ignored as the cache is only an optimization.
+     *
+     * @param key         The cache key
+     * @param bytecode    The downgraded class
+     * @param runtimeDeps The runtime dependencies reported while downgrading the class
+     */
+    public void put(final String key, final byte[] bytecode, final Collection<String> runtimeDeps) {
+        final Path file = this.resolve(key);
+        try {
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream(bytecode.length + 64);
+            try (DataOutputStream out = new DataOutputStream(baos)) {
+                out.writeInt(MAGIC);
+                out.writeInt(runtimeDeps.size());
+                for (String runtimeDep : runtimeDeps) {
+                    out.writeUTF(runtimeDep);
+                }
+                out.writeInt(bytecode.length);
+                out.write(bytecode);
+            }
+
+            write(file, baos.toByteArray());
+            if (this.size.addAndGet(baos.size()) > this.maxSize) {
+                this.evict();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache is below 90% of its maximum size.<br>
+     * Only one JVM evicts at a time, the others skip the eviction while the cache directory is locked.
+     */
+    public void evict() {
+        try (FileChannel channel = FileChannel.open(this.directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            final FileLock lock;
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                return;
+            }
+            if (lock == null) return;
+
+            try {
+                final List<Map.Entry<Path, BasicFileAttributes>> entries = new ArrayList<>();
+                long totalSize = 0;
+                try (Stream<Path> stream = Files.walk(this.directory, 2)) {
+                    for (Path path : (Iterable<Path>) stream::iterator) {
+                        if (!this.isEntry(path)) continue;
+                        try {
+                            final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                            if (!attributes.isRegularFile()) continue;
+                            entries.add(new AbstractMap.SimpleImmutableEntry<>(path, attributes));
+                            totalSize += attributes.size();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+
+                entries.sort(Comparator.comparing(e -> e.getValue().lastModifiedTime()));
+                final long targetSize = this.maxSize / 10 * 9;
+                for (Map.Entry<Path, BasicFileAttributes> entry : entries) {
+                    if (totalSize <= targetSize) break;
+                    try {
+                        Files.deleteIfExists(entry.getKey());
+                        totalSize -= entry.getValue().size();
+                    } catch (IOException ignored) {
+                    }
+                }
+                this.size.set(totalSize);
+            } finally {
+                lock.release();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    public Path getDirectory() {
+        return this.directory;
+    }
+
+    public long getMaxSize() {
+        return this.maxSize;
+    }
+
+    /**
+     * Creates a fingerprint of the contents of the given classpath.<br>
+     * The fingerprint does not depend on the location or modification time of the files, so it stays the same across
+     * fresh checkouts and downloads of the same files. The content hash of every file is remembered together with its
+     * path, size and modification time, so unchanged files are only read once per JVM.
+     *
+     * @param classpath The classpath
+     * @return The fingerprint
+     * @throws IOException If a classpath entry could not be read
+     */
+    public static String classpathHash(final Collection<File> classpath) throws IOException {
+        final MessageDigest digest = sha256();
+        for (File file : classpath) {
+            final Path root = file.toPath();
+            if (!Files.exists(root)) continue;
+            final List<Path> files = new ArrayList<>();
+            try (Stream<Path> stream = Files.walk(root)) {
+                stream.filter(Files::isRegularFile).sorted().forEach(files::add);
+            }
+            for (Path path : files) {
+                digest.update(root.relativize(path).toString().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                digest.update(hashFile(path).getBytes(StandardCharsets.UTF_8));
+            }
+            digest.update((byte) 1);
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Creates a fingerprint of the given classpath and of the type hierarchy of the classes which are downgraded.<br>
+     * Frames of a class depend on the super classes and interfaces of the other input classes, so the cache key of
+     * a class which didn't change has to change when the hierarchy of the input does. Changes to method bodies don't
+     * change the fingerprint.
+     *
+     * @param classpath    The libraries
+     * @param inputClasses The classes which are downgraded
+     * @return The fingerprint
+     * @throws IOException If a classpath entry could not be read
+     */
+    public static String classpathHash(final Collection<File> classpath, final Map<String, Supplier<byte[]>> inputClasses) throws IOException {
+        final MessageDigest digest = sha256();
+        digest.update(classpathHash(classpath).getBytes(StandardCharsets.UTF_8));
+        for (String name : new TreeSet<>(inputClasses.keySet())) {
+            digest.update((byte) 0);
+            digest.update(name.getBytes(StandardCharsets.UTF_8));
+            try {
+                final ClassReader reader = new ClassReader(inputClasses.get(name).get());
+                digest.update((byte) ((reader.getAccess() & Opcodes.ACC_INTERFACE) != 0 ? 1 : 0));
+                digest.update(String.valueOf(reader.getSuperName()).getBytes(StandardCharsets.UTF_8));
+                for (String itf : reader.getInterfaces()) {
+                    digest.update((byte) ',');
+                    digest.update(itf.getBytes(StandardCharsets.UTF_8));
+                }
+            } catch (RuntimeException ignored) {
+                // Invalid classes are not part of the type hierarchy
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    private static String hashFile(final Path path) throws IOException {
+        final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        final String stamp = path.toAbsolutePath() + ";" + attributes.size() + ";" + attributes.lastModifiedTime().toMillis();
+        synchronized (FILE_HASHES) {
+            final String hash = FILE_HASHES.get(stamp);
+            if (hash != null) return hash;
+        }
+
+        final String hash = contentHash(path);
+        synchronized (FILE_HASHES) {
+            FILE_HASHES.put(stamp, hash);
+        }
+        return hash;
+    }
+
+    static String contentHash(final Path path) throws IOException {
+        final MessageDigest digest = sha256();
+        final byte[] buffer = new byte[65536];
+        try (InputStream is = Files.newInputStream(path)) {
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Writes a file atomically, so other JVMs never read partially written files.
+     *
+     * @param file The file
+     * @param data The content of the file
+     * @throws IOException If the file could not be written
+     */
+    static void write(final Path file, final byte[] data) throws IOException {
+        Files.createDirectories(file.getParent());
+        final Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), TEMP_SUFFIX);
+        try {
+            Files.write(temp, data);
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private Path resolve(final String key) {
+        return this.directory.resolve(key.substring(0, 2)).resolve(key.substring(2));
+    }
+
+    private boolean isEntry(final Path path) {
+        if (path.getNameCount() - this.directory.getNameCount() != 2) return false;
+        // Entries are stored in directories named after the first two characters of their key
+        if (path.getParent().getFileName().toString().length() != 2) return false;
+        // Temporary files belong to writes which are still in progress, possibly in another JVM
+        return !path.getFileName().toString().endsWith(TEMP_SUFFIX);
+    }
+
+    private long computeSize() throws IOException {
+        try (Stream<Path> stream = Files.walk(this.directory, 2)) {
+            return stream
+                    .filter(this::isEntry)
+                    .mapToLong(p -> p.toFile().length())
+                    .sum();
+        }
+    }
+
+    private static String implementationFingerprint() {
+        final StringBuilder fingerprint = new StringBuilder();
+        final Package pkg = JavaDowngrader.class.getPackage();
+        if (pkg != null && pkg.getImplementationVersion() != null) {
+            fingerprint.append(pkg.getImplementationVersion());
+        }
+        // Snapshot builds don't change the version, so also include the jar which contains JavaDowngrader
+        final CodeSource codeSource = JavaDowngrader.class.getProtectionDomain().getCodeSource();
+        final URL location = codeSource != null ? codeSource.getLocation() : null;
+        if (location != null) {
+            fingerprint.append(';').append(location);
+            try {
+                final File file = new File(location.toURI());
+                if (file.isFile()) {
+                    fingerprint.append(';').append(file.length()).append(';').append(file.lastModified());
+                }
+            } catch (Throwable ignored) {
+            }
+        }
+        return fingerprint.toString();
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+
+    static String toHex(final byte[] bytes) {
+        final char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+            hex[i * 2 + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+        }
+        return new String(hex);
+    }
+
+    public static final class Entry {
+        private final byte[] bytecode;
+        private final List<String> runtimeDeps;
+
+        Entry(final byte[] bytecode, final List<String> runtimeDeps) {
+            this.bytecode = bytecode;
+            this.runtimeDeps = runtimeDeps;
+        }
+
+        public byte[] getBytecode() {
+            return this.bytecode;
+        }
+
+        public List<String> getRuntimeDeps() {
+            return this.runtimeDeps;
+        }
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.impl.classtransform;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DowngradeStats {
+
+    private final AtomicInteger transformedClasses = new AtomicInteger();
+    private final AtomicInteger streamedClasses = new AtomicInteger();
+    private final AtomicInteger versionOnlyClasses = new AtomicInteger();
+    private final AtomicInteger cachedClasses = new AtomicInteger();
+
+    /**
+     * @return The amount of classes which were fully transformed
+     */
+    public int getTransformedClasses() {
+        return this.transformedClasses.get();
+    }
+
+    /**
+     * @return The amount of fully transformed classes which were transformed without building a class tree
+     */
+    public int getStreamedClasses() {
+        return this.streamedClasses.get();
+    }
+
+    /**
+     * @return The amount of classes which took the fast path and only had their class file version changed
+     */
+    public int getVersionOnlyClasses() {
+        return this.versionOnlyClasses.get();
+    }
+
+    /**
+     * @return The amount of classes which were loaded from the {@link DowngradeCache}
+     */
+    public int getCachedClasses() {
+        return this.cachedClasses.get();
+    }
+
+    void incrementTransformedClasses() {
+        this.transformedClasses.incrementAndGet();
+    }
+
+    void incrementStreamedClasses() {
+        this.streamedClasses.incrementAndGet();
+    }
+
+    void incrementVersionOnlyClasses() {
+        this.versionOnlyClasses.incrementAndGet();
+    }
+
+    void incrementCachedClasses() {
+        this.cachedClasses.incrementAndGet();
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.impl.classtransform;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A {@link DowngradeCache} of downgraded classes which is partitioned by the jar file the classes were loaded from.<br>
+ * Entries are keyed by the content hash of the jar, the settings and the class name, so a cache hit only costs a single
+ * file read and doesn't require hashing the input class. The content hash of a jar is remembered together with its
+ * size and modification time. When those still match, the remembered hash is used immediately and the jar is hashed
+ * again in the background. If the contents turn out to be different, the jar is switched to the correct hash.
+ */
+public class JarClassCache {
+
+    private static final String STAMPS_DIRECTORY = "stamps";
+
+    private final DowngradeCache cache;
+    private final Path stampsDirectory;
+    private final String settingsHash;
+    private final Map<Path, Jar> jars = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "JavaDowngrader JarClassCache");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /**
+     * @param directory The cache directory
+     * @param maxSize   The maximum size of the cache in bytes
+     * @param settings  The downgrade settings which influence the output
+     * @throws IOException If the cache directory could not be created
+     * @see #settings(int, Collection)
+     */
+    public JarClassCache(final Path directory, final long maxSize, final String settings) throws IOException {
+        // The size of the cache is computed by the first eviction in the background instead of delaying the startup
+        this.cache = new DowngradeCache(directory, maxSize, false);
+        this.stampsDirectory = directory.resolve(STAMPS_DIRECTORY);
+        final MessageDigest digest = DowngradeCache.sha256();
+        digest.update(settings.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(DowngradeCache.IMPLEMENTATION_FINGERPRINT.getBytes(StandardCharsets.UTF_8));
+        this.settingsHash = DowngradeCache.toHex(digest.digest());
+        Files.createDirectories(this.stampsDirectory);
+        this.executor.execute(this.cache::evict);
+    }
+
+    /**
+     * Opens the cache of a jar file.
+     *
+     * @param jarFile The jar file
+     * @return The cache of the jar or null if the jar could not be read
+     */
+    public Jar open(final File jarFile) {
+        final Path path = jarFile.toPath().toAbsolutePath().normalize();
+        Jar jar = this.jars.get(path);
+        if (jar == null) {
+            jar = this.jars.computeIfAbsent(path, this::openJar);
+        }
+        return jar.hash != null ? jar : null;
+    }
+
+    public DowngradeCache getCache() {
+        return this.cache;
+    }
+
+    /**
+     * Creates the settings string for a cache.<br>
+     * The classpath is only fingerprinted using the paths, sizes and modification times of its entries, so it can be
+     * computed without reading any files.
+     *
+     * @param targetVersion The target class version
+     * @param classpath     The classpath used for frame computation
+     * @return The settings string
+     */
+    public static String settings(final int targetVersion, final Collection<File> classpath) {
+        final StringBuilder settings = new StringBuilder();
+        settings.append(targetVersion).append(';').append(System.getProperty("java.version"));
+        for (File file : classpath) {
+            settings.append(';').append(file.getAbsolutePath());
+            if (file.isFile()) {
+                settings.append(',').append(file.length()).append(',').append(file.lastModified());
+            }
+        }
+        return settings.toString();
+    }
+
+    private Jar openJar(final Path path) {
+        try {
+            final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) return new Jar(null);
+
+            final Path stampFile = this.stampsDirectory.resolve(DowngradeCache.toHex(DowngradeCache.sha256().digest(path.toString().getBytes(StandardCharsets.UTF_8))));
+            final String stamp = attributes.size() + " " + attributes.lastModifiedTime().toMillis() + " ";
+            String stampContent = null;
+            try {
+                stampContent = new String(Files.readAllBytes(stampFile), StandardCharsets.UTF_8);
+            } catch (IOException ignored) {
+            }
+
+            if (stampContent != null && stampContent.startsWith(stamp) && stampContent.length() == stamp.length() + 64) {
+                final Jar jar = new Jar(stampContent.substring(stamp.length()));
+                this.executor.execute(() -> {
+                    try {
+                        final String actualHash = DowngradeCache.contentHash(path);
+                        if (!actualHash.equals(jar.hash)) {
+                            jar.hash = actualHash;
+                            DowngradeCache.write(stampFile, (stamp + actualHash).getBytes(StandardCharsets.UTF_8));
+                        }
+                    } catch (IOException e) {
+                        jar.hash = null;
+                    }
+                });
+                return jar;
+            }
+
+            final String jarHash = DowngradeCache.contentHash(path);
+            DowngradeCache.write(stampFile, (stamp + jarHash).getBytes(StandardCharsets.UTF_8));
+            return new Jar(jarHash);
+        } catch (IOException e) {
+            return new Jar(null);
+        }
+    }
+
+    public final class Jar {
+        private volatile String hash;
+
+        private Jar(final String hash) {
+            this.hash = hash;
+        }
+
+        /**
+         * @param className The name of the class
+         * @return The cached entry or null if there is none
+         */
+        public DowngradeCache.Entry get(final String className) {
+            final String key = this.createKey(className);
+            return key != null ? JarClassCache.this.cache.get(key) : null;
+        }
+
+        /**
+         * Stores a class in the cache. Failures are ignored as the cache is only an optimization.
+         *
+         * @param className   The name of the class
+         * @param bytecode    The downgraded class
+         * @param runtimeDeps The runtime dependencies reported while downgrading the class
+         */
+        public void put(final String className, final byte[] bytecode, final Collection<String> runtimeDeps) {
+            final String key = this.createKey(className);
+            if (key != null) {
+                JarClassCache.this.cache.put(key, bytecode, runtimeDeps);
+            }
+        }
+
+        private String createKey(final String className) {
+            final String hash = this.hash;
+            if (hash == null) return null;
+            final MessageDigest digest = DowngradeCache.sha256();
+            digest.update(hash.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(JarClassCache.this.settingsHash.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(className.getBytes(StandardCharsets.UTF_8));
+            return DowngradeCache.toHex(digest.digest());
+        }
+    }
+
+}
@@ -20,12 +20,23 @@ package net.raphimc.javadowngrader.impl.classtransform;
 import net.lenni0451.classtransform.TransformerManager;
 import net.lenni0451.classtransform.transformer.IBytecodeTransformer;
 import net.lenni0451.classtransform.utils.ASMUtils;
+import net.raphimc.javadowngrader.DowngradeMetrics;
 import net.raphimc.javadowngrader.JavaDowngrader;
 import net.raphimc.javadowngrader.RuntimeDepCollector;
+import net.raphimc.javadowngrader.impl.classtransform.jfr.ClassDowngradeEvent;
+import net.raphimc.javadowngrader.impl.classtransform.util.FrameComputer;
+import net.raphimc.javadowngrader.impl.classtransform.util.TypeHierarchyIndex;
 import net.raphimc.javadowngrader.transformer.DowngradeResult;
+import net.raphimc.javadowngrader.transformer.TransformerChain;
+import net.raphimc.javadowngrader.util.ConstantPoolScanner;
+import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.tree.ClassNode;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.function.Predicate;
 
 public class JavaDowngraderTransformer implements IBytecodeTransformer {
@@ -44,6 +55,14 @@ public class JavaDowngraderTransformer implements IBytecodeTransformer {
     private final int targetVersion;
     private final Predicate<String> classFilter;
     private final RuntimeDepCollector depCollector;
+    private final boolean compiledChain;
+    private final boolean prescan;
+    private final DowngradeCache cache;
+    private final String classpathHash;
+    private final FrameComputer frameComputer;
+    private final boolean streaming;
+    private final TransformerChain chain;
+    private final DowngradeStats stats = new DowngradeStats();
 
     public JavaDowngraderTransformer(final TransformerManager transformerManager) {
         this(transformerManager, NATIVE_CLASS_VERSION);
@@ -60,19 +79,37 @@ public class JavaDowngraderTransformer implements IBytecodeTransformer {
 
     @Deprecated
     public JavaDowngraderTransformer(final TransformerManager transformerManager, final int targetVersion, final Predicate<String> classFilter) {
-        this(transformerManager, targetVersion, classFilter, RuntimeDepCollector.NULL);
+        this(transformerManager, targetVersion, classFilter, RuntimeDepCollector.NULL, false, true, null, null, true, null, true);
     }
 
     JavaDowngraderTransformer(
             TransformerManager transformerManager,
             int targetVersion,
             Predicate<String> classFilter,
-            RuntimeDepCollector depCollector
+            RuntimeDepCollector depCollector,
+            boolean compiledChain,
+            boolean prescan,
+            DowngradeCache cache,
+            String classpathHash,
+            boolean incrementalFrames,
+            TypeHierarchyIndex typeHierarchyIndex,
+            boolean streaming
     ) {
         this.transformerManager = transformerManager;
         this.targetVersion = targetVersion;
         this.classFilter = classFilter;
         this.depCollector = depCollector;
+        this.compiledChain = compiledChain;
+        this.prescan = prescan;
+        this.cache = cache;
+        this.classpathHash = classpathHash;
+        if (incrementalFrames) {
+            this.frameComputer = new FrameComputer(typeHierarchyIndex != null ? typeHierarchyIndex : new TypeHierarchyIndex(transformerManager.getClassProvider()));
+        } else {
+            this.frameComputer = null;
+        }
+        this.streaming = streaming;
+        this.chain = JavaDowngrader.compile(targetVersion);
     }
 
     @Override
@@ -85,15 +122,104 @@ public class JavaDowngraderTransformer implements IBytecodeTransformer {
             return null;
         }
 
-        final ClassNode classNode = ASMUtils.fromBytes(bytecode, 0);
-        final DowngradeResult result = JavaDowngrader.downgrade(classNode, this.targetVersion, this.depCollector);
+        final ClassDowngradeEvent event = new ClassDowngradeEvent();
+        event.begin();
+        final byte[] downgraded = this.downgrade(bytecode, calculateStackMapFrames, event);
+        if (event.shouldCommit()) {
+            event.setClass(className, majorVersion - 44, this.targetVersion - 44, bytecode.length);
+            event.commit();
+        }
+        return downgraded;
+    }
+
+    private byte[] downgrade(final byte[] bytecode, final boolean calculateStackMapFrames, final ClassDowngradeEvent event) {
+        if (this.prescan && !this.chain.requiresTransform(bytecode)) {
+            // The input array belongs to the caller (e.g. the class file buffer of an instrumentation callback)
+            final byte[] downgraded = Arrays.copyOf(bytecode, bytecode.length);
+            ConstantPoolScanner.setVersion(downgraded, this.chain.getTargetVersion());
+            this.stats.incrementVersionOnlyClasses();
+            event.setResult("versionOnly", downgraded.length, 0, false);
+            return downgraded;
+        }
+
+        String cacheKey = null;
+        if (this.cache != null) {
+            cacheKey = this.cache.createKey(bytecode, this.targetVersion + ";" + calculateStackMapFrames + ";" + this.compiledChain + ";" + (this.frameComputer != null) + ";" + this.streaming, this.classpathHash);
+            final DowngradeCache.Entry entry = this.cache.get(cacheKey);
+            if (entry != null) {
+                entry.getRuntimeDeps().forEach(this.depCollector);
+                this.stats.incrementCachedClasses();
+                event.setResult("cached", entry.getBytecode().length, 0, false);
+                return entry.getBytecode();
+            }
+        }
+
+        final Collection<String> runtimeDeps = new LinkedHashSet<>();
+        final RuntimeDepCollector depCollector = cacheKey == null ? this.depCollector : dep -> {
+            runtimeDeps.add(dep);
+            this.depCollector.accept(dep);
+        };
+        final DowngradeMetrics metrics = JavaDowngrader.getMetrics();
+        if (this.streaming && calculateStackMapFrames) {
+            final long start = metrics != null ? System.nanoTime() : 0;
+            final DowngradeResult result = new DowngradeResult();
+            final byte[] downgraded = this.chain.transformStreaming(bytecode, depCollector, result);
+            if (downgraded != null) {
+                if (metrics != null) metrics.record(DowngradeMetrics.STREAMING, start);
+                this.stats.incrementTransformedClasses();
+                this.stats.incrementStreamedClasses();
+                event.setResult("streaming", downgraded.length, result.getTransformerCount(), false);
+                if (cacheKey != null) {
+                    this.cache.put(cacheKey, downgraded, runtimeDeps);
+                }
+                return downgraded;
+            }
+            if (metrics != null) metrics.record(DowngradeMetrics.STREAMING_ABORTED, start);
+        }
 
+        long start = metrics != null ? System.nanoTime() : 0;
+        final ClassReader reader = new ClassReader(bytecode);
+        final ClassNode classNode = new ClassNode();
+        reader.accept(classNode, 0);
+        final FrameComputer.Snapshot snapshot = calculateStackMapFrames && this.frameComputer != null ? this.frameComputer.snapshot(reader, classNode) : null;
+        if (metrics != null) metrics.record(DowngradeMetrics.PARSE, start);
+        final DowngradeResult result;
+        if (this.compiledChain) {
+            result = this.chain.transform(classNode, depCollector);
+        } else {
+            result = JavaDowngrader.downgrade(classNode, this.targetVersion, depCollector);
+        }
+        this.stats.incrementTransformedClasses();
+
+        start = metrics != null ? System.nanoTime() : 0;
+        final byte[] downgraded;
         if (calculateStackMapFrames) {
-            int flags = result.requiresStackMapFrames() ? ClassWriter.COMPUTE_FRAMES : ClassWriter.COMPUTE_MAXS;
-            return ASMUtils.toBytes(classNode, this.transformerManager.getClassTree(), this.transformerManager.getClassProvider(), flags);
+            downgraded = this.toBytes(classNode, snapshot, result);
         } else {
-            return ASMUtils.toStacklessBytes(classNode);
+            downgraded = ASMUtils.toStacklessBytes(classNode);
         }
+        if (metrics != null) metrics.record(DowngradeMetrics.WRITE, start);
+        event.setResult("tree", downgraded.length, result.getTransformerCount(), calculateStackMapFrames && result.requiresStackMapFrames());
+        if (cacheKey != null) {
+            this.cache.put(cacheKey, downgraded, runtimeDeps);
+        }
+        return downgraded;
+    }
+
+    private byte[] toBytes(final ClassNode classNode, final FrameComputer.Snapshot snapshot, final DowngradeResult result) {
+        if (snapshot != null) {
+            try {
+                return this.frameComputer.toBytes(classNode, snapshot, result);
+            } catch (TypeNotPresentException ignored) {
+                // Let the class tree of the transformer manager handle classes which are not known to the index
+            }
+        }
+        final int flags = result.requiresStackMapFrames() ? ClassWriter.COMPUTE_FRAMES : ClassWriter.COMPUTE_MAXS;
+        return ASMUtils.toBytes(classNode, this.transformerManager.getClassTree(), this.transformerManager.getClassProvider(), flags);
+    }
+
+    public DowngradeStats getStats() {
+        return this.stats;
     }
 
     public static Builder builder(TransformerManager transformerManager) {
@@ -105,6 +231,13 @@ public class JavaDowngraderTransformer implements IBytecodeTransformer {
         private int targetVersion = NATIVE_CLASS_VERSION;
         private Predicate<String> classFilter = c -> true;
         private RuntimeDepCollector depCollector = RuntimeDepCollector.NULL;
+        private boolean compiledChain = false;
+        private boolean prescan = true;
+        private DowngradeCache cache = null;
+        private String classpathHash = "";
+        private boolean incrementalFrames = true;
+        private TypeHierarchyIndex typeHierarchyIndex = null;
+        private boolean streaming = true;
 
         Builder(TransformerManager transformerManager) {
             this.transformerManager = transformerManager;
@@ -125,12 +258,79 @@ public class JavaDowngraderTransformer implements IBytecodeTransformer {
             return this;
         }
 
+        public Builder compiledChain(boolean compiledChain) {
+            this.compiledChain = compiledChain;
+            return this;
+        }
+
+        public Builder prescan(boolean prescan) {
+            this.prescan = prescan;
+            return this;
+        }
+
+        /**
+         * Enables the persistent class cache.
+         *
+         * @param cache         The cache to use
+         * @param classpathHash A fingerprint of the classpath and the input type hierarchy which are used for frame computation
+         * @return This builder
+         * @see DowngradeCache#classpathHash(Collection, Map)
+         */
+        public Builder cache(DowngradeCache cache, String classpathHash) {
+            this.cache = cache;
+            this.classpathHash = classpathHash;
+            return this;
+        }
+
+        /**
+         * Only recomputes the stack map frames and maxs of methods which were changed by the transformers and copies all
+         * other methods verbatim from the original class file.
+         *
+         * @param incrementalFrames If frames should be computed incrementally
+         * @return This builder
+         */
+        public Builder incrementalFrames(boolean incrementalFrames) {
+            this.incrementalFrames = incrementalFrames;
+            return this;
+        }
+
+        /**
+         * Sets the type hierarchy index used to compute stack map frames. Can be shared between transformers which use the same class provider.
+         *
+         * @param typeHierarchyIndex The index to use
+         * @return This builder
+         */
+        public Builder typeHierarchyIndex(TypeHierarchyIndex typeHierarchyIndex) {
+            this.typeHierarchyIndex = typeHierarchyIndex;
+            return this;
+        }
+
+        /**
+         * Downgrades classes which only need call site local method call replacements without building a class tree.
+         * All other classes fall back to the tree API.
+         *
+         * @param streaming If the streaming transformation should be used
+         * @return This builder
+         * @see net.raphimc.javadowngrader.transformer.TransformerChain#transformStreaming
+         */
+        public Builder streaming(boolean streaming) {
+            this.streaming = streaming;
+            return this;
+        }
+
         public JavaDowngraderTransformer build() {
             return new JavaDowngraderTransformer(
                     transformerManager,
                     targetVersion,
                     classFilter,
-                    depCollector
+                    depCollector,
+                    compiledChain,
+                    prescan,
+                    cache,
+                    classpathHash,
+                    incrementalFrames,
+                    typeHierarchyIndex,
+                    streaming
             );
         }
     }
@@ -0,0 +1,69 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.impl.classtransform.classprovider;
+
+import net.lenni0451.classtransform.utils.tree.IClassProvider;
+import net.raphimc.javadowngrader.impl.classtransform.util.ClassNameUtil;
+import net.raphimc.javadowngrader.impl.classtransform.util.ZipArchive;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+public class ZipArchiveClassProvider implements IClassProvider {
+
+    private final ZipArchive archive;
+    private final IClassProvider parent;
+
+    public ZipArchiveClassProvider(final ZipArchive archive, final IClassProvider parent) {
+        this.archive = archive;
+        this.parent = parent;
+    }
+
+    @Override
+    public byte[] getClass(String name) throws ClassNotFoundException {
+        final ZipArchive.Entry entry = this.archive.getEntry(ClassNameUtil.toClassFilename(name));
+        if (entry == null) {
+            return this.parent.getClass(name);
+        }
+        try {
+            return this.archive.read(entry);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public Map<String, Supplier<byte[]>> getAllClasses() {
+        final Map<String, Supplier<byte[]>> classes = new HashMap<>(this.parent.getAllClasses());
+        for (ZipArchive.Entry entry : this.archive.getEntries()) {
+            if (!entry.getName().endsWith(".class")) continue;
+            classes.put(ClassNameUtil.toClassName(entry.getName()), () -> {
+                try {
+                    return this.archive.read(entry);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        return classes;
+    }
+
+}
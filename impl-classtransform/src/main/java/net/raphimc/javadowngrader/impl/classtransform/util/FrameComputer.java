@@ -0,0 +1,406 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.impl.classtransform.util;
+
+import net.raphimc.javadowngrader.transformer.DowngradeResult;
+import org.objectweb.asm.*;
+import org.objectweb.asm.tree.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Writes transformed classes and only recomputes the stack map frames and maxs of methods which were changed by the transformers.<br>
+ * Methods which weren't changed are copied verbatim from the original class file. Common super classes are resolved
+ * through a {@link TypeHierarchyIndex}.
+ */
+public class FrameComputer {
+
+    private static final int CONSTANT_DYNAMIC_TAG = 17;
+    private static final int CONSTANT_MODULE_TAG = 19;
+    private static final int CONSTANT_PACKAGE_TAG = 20;
+
+    private final TypeHierarchyIndex index;
+
+    public FrameComputer(final TypeHierarchyIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Captures the state of a class before it is transformed.
+     *
+     * @param reader    The reader of the original class file
+     * @param classNode The class which was read from the reader
+     * @return The snapshot to pass to {@link #toBytes(ClassNode, Snapshot, DowngradeResult)} after the class was transformed
+     */
+    public Snapshot snapshot(final ClassReader reader, final ClassNode classNode) {
+        final Map<MethodNode, Long> fingerprints = new IdentityHashMap<>();
+        final Map<String, MethodNode> methods = new HashMap<>();
+        for (MethodNode methodNode : classNode.methods) {
+            fingerprints.put(methodNode, fingerprint(methodNode));
+            methods.put(methodNode.name + methodNode.desc, methodNode);
+        }
+        return new Snapshot(canCopyConstantPool(reader) ? reader : null, classNode.access, classNode.name, classNode.superName, new ArrayList<>(classNode.interfaces), fingerprints, methods);
+    }
+
+    /**
+     * Writes the given class. Methods which were reported as modified or whose code changed since the snapshot was taken
+     * get their maxs and, if required, their frames recomputed. All other methods are copied from the original class file.
+     *
+     * @param classNode The transformed class
+     * @param snapshot  The snapshot of the class before it was transformed
+     * @param result    The result of the transformation
+     * @return The class file
+     * @throws TypeNotPresentException If a type required to compute the frames could not be found
+     */
+    public byte[] toBytes(final ClassNode classNode, final Snapshot snapshot, final DowngradeResult result) {
+        // The type of the implicit this in the frames depends on the name of the class
+        final boolean hierarchyChanged = ((classNode.access ^ snapshot.access) & Opcodes.ACC_INTERFACE) != 0
+                || !classNode.name.equals(snapshot.name)
+                || !Objects.equals(classNode.superName, snapshot.superName)
+                || !classNode.interfaces.equals(snapshot.interfaces);
+        final Set<MethodNode> unchangedMethods = Collections.newSetFromMap(new IdentityHashMap<>());
+        final List<MethodNode> frameMethods = new ArrayList<>();
+        final List<MethodNode> maxsMethods = new ArrayList<>();
+        for (MethodNode methodNode : classNode.methods) {
+            final boolean modified = result.isModified(methodNode);
+            if (!hierarchyChanged && !modified) {
+                final Long fingerprint = snapshot.fingerprints.get(methodNode);
+                if (fingerprint != null && fingerprint == fingerprint(methodNode)) {
+                    unchangedMethods.add(methodNode);
+                    continue;
+                }
+            }
+            if (methodNode.instructions.size() == 0) continue;
+
+            if (result.requiresStackMapFrames() && (!modified || result.requiresStackMapFrames(methodNode))) {
+                frameMethods.add(methodNode);
+            } else {
+                maxsMethods.add(methodNode);
+            }
+        }
+        this.computeMethods(classNode, frameMethods, ClassWriter.COMPUTE_FRAMES);
+        this.computeMethods(classNode, maxsMethods, ClassWriter.COMPUTE_MAXS);
+
+        if (snapshot.reader != null && !unchangedMethods.isEmpty()) {
+            return copyUnchangedMethods(classNode, snapshot, unchangedMethods);
+        }
+        final ClassWriter writer = new ClassWriter(0);
+        classNode.accept(writer);
+        return writer.toByteArray();
+    }
+
+    private void computeMethods(final ClassNode classNode, final List<MethodNode> methods, final int flags) {
+        if (methods.isEmpty()) return;
+
+        final ClassNode computeClass = new ClassNode();
+        computeClass.version = classNode.version;
+        computeClass.access = classNode.access;
+        computeClass.name = classNode.name;
+        computeClass.superName = classNode.superName;
+        computeClass.interfaces = classNode.interfaces;
+        computeClass.methods = methods;
+        final ClassWriter computeWriter = new ClassWriter(flags) {
+            @Override
+            protected String getCommonSuperClass(String type1, String type2) {
+                return FrameComputer.this.index.getCommonSuperClass(type1, type2, classNode);
+            }
+        };
+        computeClass.accept(computeWriter);
+
+        final ClassNode computedClass = new ClassNode();
+        new ClassReader(computeWriter.toByteArray()).accept(computedClass, 0);
+        final Map<MethodNode, MethodNode> computedMethods = new IdentityHashMap<>();
+        for (int i = 0; i < methods.size(); i++) {
+            computedMethods.put(methods.get(i), computedClass.methods.get(i));
+        }
+        classNode.methods.replaceAll(methodNode -> computedMethods.getOrDefault(methodNode, methodNode));
+    }
+
+    private static byte[] copyUnchangedMethods(final ClassNode classNode, final Snapshot snapshot, final Set<MethodNode> unchangedMethods) {
+        // A writer which shares the constant pool with the reader copies the methods it gets from the reader verbatim
+        final ClassWriter writer = new ClassWriter(snapshot.reader, 0);
+        classNode.accept(new ClassVisitor(Opcodes.ASM9, writer) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                return null;
+            }
+
+            @Override
+            public void visitEnd() {
+            }
+        });
+
+        final List<MethodNode> methods = classNode.methods;
+        final Map<MethodNode, Integer> positions = new IdentityHashMap<>();
+        for (int i = 0; i < methods.size(); i++) {
+            positions.put(methods.get(i), i);
+        }
+        final int[] next = {0};
+        snapshot.reader.accept(new ClassVisitor(Opcodes.ASM9) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                final MethodNode methodNode = snapshot.methods.get(name + descriptor);
+                if (methodNode == null || !unchangedMethods.contains(methodNode)) return null;
+
+                // Keep the method order of the transformed class
+                final int position = positions.get(methodNode);
+                for (; next[0] < position; next[0]++) {
+                    final MethodNode previous = methods.get(next[0]);
+                    if (!unchangedMethods.contains(previous)) {
+                        previous.accept(writer);
+                    }
+                }
+                next[0] = Math.max(next[0], position + 1);
+                return writer.visitMethod(methodNode.access, methodNode.name, methodNode.desc, methodNode.signature, methodNode.exceptions.toArray(new String[0]));
+            }
+        }, 0);
+        for (; next[0] < methods.size(); next[0]++) {
+            final MethodNode methodNode = methods.get(next[0]);
+            if (!unchangedMethods.contains(methodNode)) {
+                methodNode.accept(writer);
+            }
+        }
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private static boolean canCopyConstantPool(final ClassReader reader) {
+        // The copied constant pool must not contain entries which are unknown to the target version
+        for (int i = 1; i < reader.getItemCount(); i++) {
+            final int offset = reader.getItem(i);
+            if (offset == 0) continue;
+
+            final int tag = reader.readByte(offset - 1);
+            if (tag == CONSTANT_DYNAMIC_TAG || tag == CONSTANT_MODULE_TAG || tag == CONSTANT_PACKAGE_TAG) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long fingerprint(final MethodNode methodNode) {
+        final Fingerprint fingerprint = new Fingerprint();
+        fingerprint.add(methodNode.name);
+        fingerprint.add(methodNode.signature);
+        fingerprint.add(methodNode.exceptions.size());
+        for (String exception : methodNode.exceptions) {
+            fingerprint.add(exception);
+        }
+        addAnnotations(fingerprint, methodNode.visibleAnnotations);
+        addAnnotations(fingerprint, methodNode.invisibleAnnotations);
+        final InsnList instructions = methodNode.instructions;
+        for (AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            fingerprint.add(insn.getType());
+            fingerprint.add(insn.getOpcode());
+            switch (insn.getType()) {
+                case AbstractInsnNode.INT_INSN:
+                    fingerprint.add(((IntInsnNode) insn).operand);
+                    break;
+                case AbstractInsnNode.VAR_INSN:
+                    fingerprint.add(((VarInsnNode) insn).var);
+                    break;
+                case AbstractInsnNode.TYPE_INSN:
+                    fingerprint.add(((TypeInsnNode) insn).desc);
+                    break;
+                case AbstractInsnNode.FIELD_INSN: {
+                    final FieldInsnNode fieldInsn = (FieldInsnNode) insn;
+                    fingerprint.add(fieldInsn.owner);
+                    fingerprint.add(fieldInsn.name);
+                    fingerprint.add(fieldInsn.desc);
+                    break;
+                }
+                case AbstractInsnNode.METHOD_INSN: {
+                    final MethodInsnNode methodInsn = (MethodInsnNode) insn;
+                    fingerprint.add(methodInsn.owner);
+                    fingerprint.add(methodInsn.name);
+                    fingerprint.add(methodInsn.desc);
+                    fingerprint.add(methodInsn.itf ? 1 : 0);
+                    break;
+                }
+                case AbstractInsnNode.INVOKE_DYNAMIC_INSN: {
+                    final InvokeDynamicInsnNode invokeDynamicInsn = (InvokeDynamicInsnNode) insn;
+                    fingerprint.add(invokeDynamicInsn.name);
+                    fingerprint.add(invokeDynamicInsn.desc);
+                    fingerprint.addConstant(invokeDynamicInsn.bsm);
+                    for (Object arg : invokeDynamicInsn.bsmArgs) {
+                        fingerprint.addConstant(arg);
+                    }
+                    break;
+                }
+                case AbstractInsnNode.JUMP_INSN:
+                    fingerprint.add(instructions.indexOf(((JumpInsnNode) insn).label));
+                    break;
+                case AbstractInsnNode.LDC_INSN:
+                    fingerprint.addConstant(((LdcInsnNode) insn).cst);
+                    break;
+                case AbstractInsnNode.IINC_INSN:
+                    fingerprint.add(((IincInsnNode) insn).var);
+                    fingerprint.add(((IincInsnNode) insn).incr);
+                    break;
+                case AbstractInsnNode.TABLESWITCH_INSN: {
+                    final TableSwitchInsnNode tableSwitchInsn = (TableSwitchInsnNode) insn;
+                    fingerprint.add(tableSwitchInsn.min);
+                    fingerprint.add(tableSwitchInsn.max);
+                    fingerprint.add(instructions.indexOf(tableSwitchInsn.dflt));
+                    for (LabelNode label : tableSwitchInsn.labels) {
+                        fingerprint.add(instructions.indexOf(label));
+                    }
+                    break;
+                }
+                case AbstractInsnNode.LOOKUPSWITCH_INSN: {
+                    final LookupSwitchInsnNode lookupSwitchInsn = (LookupSwitchInsnNode) insn;
+                    fingerprint.add(instructions.indexOf(lookupSwitchInsn.dflt));
+                    for (int key : lookupSwitchInsn.keys) {
+                        fingerprint.add(key);
+                    }
+                    for (LabelNode label : lookupSwitchInsn.labels) {
+                        fingerprint.add(instructions.indexOf(label));
+                    }
+                    break;
+                }
+                case AbstractInsnNode.MULTIANEWARRAY_INSN:
+                    fingerprint.add(((MultiANewArrayInsnNode) insn).desc);
+                    fingerprint.add(((MultiANewArrayInsnNode) insn).dims);
+                    break;
+                case AbstractInsnNode.FRAME: {
+                    final FrameNode frame = (FrameNode) insn;
+                    fingerprint.add(frame.type);
+                    addFrameTypes(fingerprint, instructions, frame.local);
+                    addFrameTypes(fingerprint, instructions, frame.stack);
+                    break;
+                }
+            }
+        }
+        if (methodNode.tryCatchBlocks != null) {
+            for (TryCatchBlockNode tryCatchBlock : methodNode.tryCatchBlocks) {
+                fingerprint.add(instructions.indexOf(tryCatchBlock.start));
+                fingerprint.add(instructions.indexOf(tryCatchBlock.end));
+                fingerprint.add(instructions.indexOf(tryCatchBlock.handler));
+                fingerprint.add(tryCatchBlock.type);
+            }
+        }
+        if (methodNode.localVariables != null) {
+            for (LocalVariableNode localVariable : methodNode.localVariables) {
+                fingerprint.add(localVariable.index);
+                fingerprint.add(localVariable.desc);
+                fingerprint.add(localVariable.signature);
+            }
+        }
+        return fingerprint.hash;
+    }
+
+    private static void addAnnotations(final Fingerprint fingerprint, final List<AnnotationNode> annotations) {
+        if (annotations == null) {
+            fingerprint.add(-1);
+            return;
+        }
+        for (AnnotationNode annotation : annotations) {
+            fingerprint.add(annotation.desc);
+        }
+    }
+
+    private static void addFrameTypes(final Fingerprint fingerprint, final InsnList instructions, final List<Object> types) {
+        if (types == null) {
+            fingerprint.add(-1);
+            return;
+        }
+        fingerprint.add(types.size());
+        for (Object type : types) {
+            if (type instanceof LabelNode) {
+                fingerprint.add(instructions.indexOf((LabelNode) type));
+            } else {
+                fingerprint.addConstant(type);
+            }
+        }
+    }
+
+    public static final class Snapshot {
+        private final ClassReader reader;
+        private final int access;
+        private final String name;
+        private final String superName;
+        private final List<String> interfaces;
+        private final Map<MethodNode, Long> fingerprints;
+        private final Map<String, MethodNode> methods;
+
+        private Snapshot(final ClassReader reader, final int access, final String name, final String superName, final List<String> interfaces, final Map<MethodNode, Long> fingerprints, final Map<String, MethodNode> methods) {
+            this.reader = reader;
+            this.access = access;
+            this.name = name;
+            this.superName = superName;
+            this.interfaces = interfaces;
+            this.fingerprints = fingerprints;
+            this.methods = methods;
+        }
+    }
+
+    private static final class Fingerprint {
+        private long hash = 0x9E3779B97F4A7C15L;
+
+        private void add(final long value) {
+            this.hash = Long.rotateLeft((this.hash ^ value) * 0xBF58476D1CE4E5B9L, 31) * 0x94D049BB133111EBL;
+        }
+
+        private void add(final String value) {
+            if (value == null) {
+                this.add(-1);
+                return;
+            }
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            this.add(bytes.length);
+            long chunk = 0;
+            for (int i = 0; i < bytes.length; i++) {
+                chunk = chunk << 8 | (bytes[i] & 0xFF);
+                if ((i & 7) == 7) {
+                    this.add(chunk);
+                    chunk = 0;
+                }
+            }
+            this.add(chunk);
+        }
+
+        private void addConstant(final Object value) {
+            if (value instanceof Handle) {
+                final Handle handle = (Handle) value;
+                this.add(handle.getTag());
+                this.add(handle.getOwner());
+                this.add(handle.getName());
+                this.add(handle.getDesc());
+                this.add(handle.isInterface() ? 1 : 0);
+            } else if (value instanceof ConstantDynamic) {
+                final ConstantDynamic constantDynamic = (ConstantDynamic) value;
+                this.add(constantDynamic.getName());
+                this.add(constantDynamic.getDescriptor());
+                this.addConstant(constantDynamic.getBootstrapMethod());
+                for (int i = 0; i < constantDynamic.getBootstrapMethodArgumentCount(); i++) {
+                    this.addConstant(constantDynamic.getBootstrapMethodArgument(i));
+                }
+            } else if (value instanceof Type) {
+                this.add(((Type) value).getSort());
+                this.add(((Type) value).getDescriptor());
+            } else if (value == null) {
+                this.add(-1);
+            } else {
+                this.add(value.getClass().getName());
+                this.add(value.toString());
+            }
+        }
+    }
+
+}
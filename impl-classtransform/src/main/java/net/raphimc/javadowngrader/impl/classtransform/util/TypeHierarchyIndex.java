@@ -0,0 +1,142 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.impl.classtransform.util;
+
+import net.lenni0451.classtransform.utils.ASMUtils;
+import net.lenni0451.classtransform.utils.tree.IClassProvider;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A thread safe index of the super classes and interfaces of classes which is used to compute stack map frames.<br>
+ * Only the header of a class file is parsed and every class is requested from the class provider at most once.
+ */
+public class TypeHierarchyIndex {
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final TypeInfo MISSING = new TypeInfo(null, new String[0], false);
+
+    private final IClassProvider classProvider;
+    private final TypeHierarchyIndex parent;
+    private final Map<String, TypeInfo> types = new ConcurrentHashMap<>();
+
+    public TypeHierarchyIndex(final IClassProvider classProvider) {
+        this(classProvider, null);
+    }
+
+    /**
+     * Creates an index which looks up the types its class provider doesn't contain in a parent index.<br>
+     * This allows sharing the index of libraries between multiple sets of classes.
+     *
+     * @param classProvider The class provider of the types which are not part of the parent index
+     * @param parent        The parent index or null
+     */
+    public TypeHierarchyIndex(final IClassProvider classProvider, final TypeHierarchyIndex parent) {
+        this.classProvider = classProvider;
+        this.parent = parent;
+    }
+
+    /**
+     * Adds the given class to the index without going through the class provider.
+     *
+     * @param bytecode The class file
+     */
+    public void add(final byte[] bytecode) {
+        final ClassReader reader = new ClassReader(bytecode);
+        this.types.put(reader.getClassName(), new TypeInfo(reader.getSuperName(), reader.getInterfaces(), (reader.getAccess() & Opcodes.ACC_INTERFACE) != 0));
+    }
+
+    /**
+     * Finds the common super class of two types the same way {@link org.objectweb.asm.ClassWriter} does.
+     *
+     * @param type1 The internal name of the first type
+     * @param type2 The internal name of the second type
+     * @param self  The class which is currently being written, its hierarchy takes precedence over the indexed one
+     * @return The internal name of the common super class
+     * @throws TypeNotPresentException If a type could not be found
+     */
+    public String getCommonSuperClass(String type1, final String type2, final ClassNode self) {
+        if (type1.equals(type2)) return type1;
+        if (this.isAssignableFrom(type1, type2, self)) return type1;
+        if (this.isAssignableFrom(type2, type1, self)) return type2;
+        if (this.get(type1, self).isInterface || this.get(type2, self).isInterface) return OBJECT;
+
+        do {
+            type1 = this.get(type1, self).superName;
+            if (type1 == null) return OBJECT;
+        } while (!this.isAssignableFrom(type1, type2, self));
+        return type1;
+    }
+
+    private boolean isAssignableFrom(final String type, final String other, final ClassNode self) {
+        if (type.equals(OBJECT) || type.equals(other)) return true;
+
+        final TypeInfo otherInfo = this.get(other, self);
+        if (otherInfo.superName != null && this.isAssignableFrom(type, otherInfo.superName, self)) return true;
+        if (this.get(type, self).isInterface) {
+            for (String itf : otherInfo.interfaces) {
+                if (this.isAssignableFrom(type, itf, self)) return true;
+            }
+        }
+        return false;
+    }
+
+    private TypeInfo get(final String name, final ClassNode self) {
+        if (self != null && name.equals(self.name)) {
+            return new TypeInfo(self.superName, self.interfaces.toArray(new String[0]), (self.access & Opcodes.ACC_INTERFACE) != 0);
+        }
+
+        final TypeInfo info = this.find(name);
+        if (info == MISSING) {
+            throw new TypeNotPresentException(ASMUtils.dot(name), null);
+        }
+        return info;
+    }
+
+    private TypeInfo find(final String name) {
+        TypeInfo info = this.types.get(name);
+        if (info == null) {
+            try {
+                final ClassReader reader = new ClassReader(this.classProvider.getClass(ASMUtils.dot(name)));
+                info = new TypeInfo(reader.getSuperName(), reader.getInterfaces(), (reader.getAccess() & Opcodes.ACC_INTERFACE) != 0);
+            } catch (ClassNotFoundException | RuntimeException e) {
+                info = this.parent != null ? this.parent.find(name) : MISSING;
+            }
+            final TypeInfo existing = this.types.putIfAbsent(name, info);
+            if (existing != null) info = existing;
+        }
+        return info;
+    }
+
+    private static final class TypeInfo {
+        private final String superName;
+        private final String[] interfaces;
+        private final boolean isInterface;
+
+        private TypeInfo(final String superName, final String[] interfaces, final boolean isInterface) {
+            this.superName = superName;
+            this.interfaces = interfaces;
+            this.isInterface = isInterface;
+        }
+    }
+
+}
@@ -0,0 +1,323 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.impl.classtransform.util;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * A read-only zip archive which reads the central directory once and allows reading the raw (still compressed) entry data.<br>
+ * All read methods are thread safe.
+ */
+public class ZipArchive implements Closeable {
+
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034B50;
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014B50;
+    static final int END_SIGNATURE = 0x06054B50;
+    static final int ZIP64_END_SIGNATURE = 0x06064B50;
+    static final int ZIP64_LOCATOR_SIGNATURE = 0x07064B50;
+    static final int ZIP64_EXTRA_ID = 0x0001;
+    static final int LOCAL_HEADER_SIZE = 30;
+    static final int CENTRAL_HEADER_SIZE = 46;
+    static final int END_SIZE = 22;
+    static final int ZIP64_END_SIZE = 56;
+    static final int ZIP64_LOCATOR_SIZE = 20;
+
+    private final FileChannel channel;
+    private final List<Entry> entries;
+    private final Map<String, Entry> entriesByName;
+
+    public ZipArchive(final Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            this.entries = Collections.unmodifiableList(this.readCentralDirectory());
+        } catch (Throwable t) {
+            this.channel.close();
+            throw t;
+        }
+        this.entriesByName = new HashMap<>(this.entries.size() * 2);
+        for (Entry entry : this.entries) {
+            this.entriesByName.putIfAbsent(entry.name, entry);
+        }
+    }
+
+    /**
+     * @return All entries in the order of the central directory
+     */
+    public List<Entry> getEntries() {
+        return this.entries;
+    }
+
+    public Entry getEntry(final String name) {
+        return this.entriesByName.get(name);
+    }
+
+    /**
+     * Reads the data of an entry as it is stored in the archive.
+     *
+     * @param entry The entry
+     * @return The compressed data
+     * @throws IOException If the data could not be read
+     */
+    public byte[] readRaw(final Entry entry) throws IOException {
+        if (entry.compressedSize > Integer.MAX_VALUE) {
+            throw new ZipException("Entry too large: " + entry.name);
+        }
+        final ByteBuffer header = this.read(entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Invalid local header: " + entry.name);
+        }
+        final long dataOffset = entry.localHeaderOffset + LOCAL_HEADER_SIZE + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+        return this.read(dataOffset, (int) entry.compressedSize).array();
+    }
+
+    /**
+     * Reads and decompresses the data of an entry.
+     *
+     * @param entry The entry
+     * @return The uncompressed data
+     * @throws IOException If the data could not be read or decompressed
+     */
+    public byte[] read(final Entry entry) throws IOException {
+        if (entry.size > Integer.MAX_VALUE) {
+            throw new ZipException("Entry too large: " + entry.name);
+        }
+        return decompress(entry, this.readRaw(entry), (int) entry.size);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    /**
+     * Decompresses the beginning of the raw data of an entry.<br>
+     * Reading only a small prefix is cheap and can be used to inspect an entry (e.g. the class file version) before deciding to copy it raw.
+     *
+     * @param entry  The entry
+     * @param raw    The raw data as returned by {@link #readRaw(Entry)}
+     * @param length The amount of bytes to decompress, capped to the size of the entry
+     * @return The decompressed data
+     * @throws IOException If the data could not be decompressed
+     */
+    public static byte[] decompress(final Entry entry, final byte[] raw, int length) throws IOException {
+        length = (int) Math.min(length, entry.size);
+        if (entry.method == Entry.STORED) {
+            return length == raw.length ? raw : Arrays.copyOf(raw, length);
+        } else if (entry.method != Entry.DEFLATED) {
+            throw new ZipException("Unsupported compression method " + entry.method + ": " + entry.name);
+        }
+
+        final byte[] data = new byte[length];
+        final Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(raw);
+            int pos = 0;
+            while (pos < length) {
+                final int read = inflater.inflate(data, pos, length - pos);
+                if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                pos += read;
+            }
+            if (pos != length) {
+                throw new ZipException("Invalid entry size: " + entry.name);
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Invalid compressed data: " + entry.name);
+        } finally {
+            inflater.end();
+        }
+        return data;
+    }
+
+    private List<Entry> readCentralDirectory() throws IOException {
+        final long fileSize = this.channel.size();
+        final int searchLength = (int) Math.min(fileSize, END_SIZE + 0xFFFF);
+        final ByteBuffer tail = this.read(fileSize - searchLength, searchLength);
+        int endPos = -1;
+        for (int i = searchLength - END_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_SIGNATURE && i + END_SIZE + (tail.getShort(i + 20) & 0xFFFF) <= searchLength) {
+                endPos = i;
+                break;
+            }
+        }
+        if (endPos == -1) {
+            throw new ZipException("End of central directory not found");
+        }
+
+        long entryCount = tail.getShort(endPos + 10) & 0xFFFF;
+        long directorySize = tail.getInt(endPos + 12) & 0xFFFFFFFFL;
+        long directoryOffset = tail.getInt(endPos + 16) & 0xFFFFFFFFL;
+        // The position of the record which follows the central directory
+        long directoryEnd = fileSize - searchLength + endPos;
+        if (directoryEnd >= ZIP64_LOCATOR_SIZE + ZIP64_END_SIZE) {
+            final ByteBuffer locator = this.read(directoryEnd - ZIP64_LOCATOR_SIZE, ZIP64_LOCATOR_SIZE);
+            if (locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+                long zip64EndOffset = locator.getLong(8);
+                ByteBuffer zip64End = zip64EndOffset >= 0 && zip64EndOffset <= fileSize - ZIP64_END_SIZE ? this.read(zip64EndOffset, ZIP64_END_SIZE) : null;
+                if (zip64End == null || zip64End.getInt(0) != ZIP64_END_SIGNATURE) {
+                    // The recorded offset is wrong if data was prepended to the archive
+                    zip64EndOffset = directoryEnd - ZIP64_LOCATOR_SIZE - ZIP64_END_SIZE;
+                    zip64End = this.read(zip64EndOffset, ZIP64_END_SIZE);
+                    if (zip64End.getInt(0) != ZIP64_END_SIGNATURE) {
+                        throw new ZipException("Invalid zip64 end of central directory");
+                    }
+                }
+                entryCount = zip64End.getLong(32);
+                directorySize = zip64End.getLong(40);
+                directoryOffset = zip64End.getLong(48);
+                directoryEnd = zip64EndOffset;
+            }
+        }
+        if (directorySize > Integer.MAX_VALUE) {
+            throw new ZipException("Central directory too large");
+        }
+        // Archives with prepended data (e.g. launch scripts) store offsets relative to the start of the archive
+        final long delta = directoryEnd - directorySize - directoryOffset;
+        if (delta < 0) {
+            throw new ZipException("Invalid central directory offset");
+        }
+
+        final ByteBuffer directory = this.read(directoryOffset + delta, (int) directorySize);
+        final List<Entry> entries = new ArrayList<>((int) Math.min(entryCount, 1 << 16));
+        int pos = 0;
+        while (pos + CENTRAL_HEADER_SIZE <= directorySize) {
+            if (directory.getInt(pos) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid central directory header");
+            }
+            final int method = directory.getShort(pos + 10) & 0xFFFF;
+            final int dosTime = directory.getInt(pos + 12);
+            final long crc = directory.getInt(pos + 16) & 0xFFFFFFFFL;
+            long compressedSize = directory.getInt(pos + 20) & 0xFFFFFFFFL;
+            long size = directory.getInt(pos + 24) & 0xFFFFFFFFL;
+            final int nameLength = directory.getShort(pos + 28) & 0xFFFF;
+            final int extraLength = directory.getShort(pos + 30) & 0xFFFF;
+            final int commentLength = directory.getShort(pos + 32) & 0xFFFF;
+            long localHeaderOffset = directory.getInt(pos + 42) & 0xFFFFFFFFL;
+            final String name = new String(directory.array(), pos + CENTRAL_HEADER_SIZE, nameLength, StandardCharsets.UTF_8);
+
+            int extraPos = pos + CENTRAL_HEADER_SIZE + nameLength;
+            final int extraEnd = extraPos + extraLength;
+            while (extraPos + 4 <= extraEnd) {
+                final int id = directory.getShort(extraPos) & 0xFFFF;
+                final int length = directory.getShort(extraPos + 2) & 0xFFFF;
+                if (id == ZIP64_EXTRA_ID) {
+                    int valuePos = extraPos + 4;
+                    if (size == 0xFFFFFFFFL) {
+                        size = directory.getLong(valuePos);
+                        valuePos += 8;
+                    }
+                    if (compressedSize == 0xFFFFFFFFL) {
+                        compressedSize = directory.getLong(valuePos);
+                        valuePos += 8;
+                    }
+                    if (localHeaderOffset == 0xFFFFFFFFL) {
+                        localHeaderOffset = directory.getLong(valuePos);
+                    }
+                }
+                extraPos += 4 + length;
+            }
+
+            entries.add(new Entry(name, method, dosTime, crc, compressedSize, size, localHeaderOffset + delta));
+            pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return entries;
+    }
+
+    private ByteBuffer read(long position, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            final int read = this.channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public static final class Entry {
+
+        public static final int STORED = 0;
+        public static final int DEFLATED = 8;
+
+        private final String name;
+        private final int method;
+        private final int dosTime;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final long localHeaderOffset;
+
+        Entry(final String name, final int method, final int dosTime, final long crc, final long compressedSize, final long size, final long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public boolean isDirectory() {
+            return this.name.endsWith("/");
+        }
+
+        public int getMethod() {
+            return this.method;
+        }
+
+        /**
+         * @return The last modification time in MS-DOS format (date in the upper, time in the lower 16 bits)
+         */
+        public int getDosTime() {
+            return this.dosTime;
+        }
+
+        public long getCrc() {
+            return this.crc;
+        }
+
+        public long getCompressedSize() {
+            return this.compressedSize;
+        }
+
+        public long getSize() {
+            return this.size;
+        }
+
+    }
+
+}
@@ -0,0 +1,323 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.impl.classtransform.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+import static net.raphimc.javadowngrader.impl.classtransform.util.ZipArchive.*;
+
+/**
+ * A sequential zip writer which can copy already compressed entries from a {@link ZipArchive} without recompressing them.<br>
+ * Entries are written in the order of the method calls. Only {@link #compress(String, byte[])} is thread safe,
+ * which allows compressing entries on worker threads and only serializing the writes.
+ */
+public class ZipArchiveWriter implements Closeable {
+
+    private static final int FLAG_UTF8 = 0x800;
+    private static final int VERSION_STORED = 10;
+    private static final int VERSION_DEFLATED = 20;
+    private static final int VERSION_ZIP64 = 45;
+    /**
+     * A constant modification time (1980-02-01) for reproducible archives.
+     */
+    public static final long REPRODUCIBLE_TIME = new GregorianCalendar(1980, Calendar.FEBRUARY, 1, 0, 0, 0).getTimeInMillis();
+
+    private final OutputStream out;
+    private final int compressionLevel;
+    private final int dosTime;
+    private final Set<String> names = new HashSet<>();
+    private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+    private final byte[] headerBuffer = new byte[CENTRAL_HEADER_SIZE + 28];
+    private long offset;
+    private long entryCount;
+
+    public ZipArchiveWriter(final Path file) throws IOException {
+        this(file, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param file             The output file
+     * @param compressionLevel The deflate level for new entries (0-9 or -1 for the default level). 0 stores the entries uncompressed
+     * @throws IOException If the file could not be opened
+     */
+    public ZipArchiveWriter(final Path file, final int compressionLevel) throws IOException {
+        this(file, compressionLevel, System.currentTimeMillis());
+    }
+
+    /**
+     * @param file             The output file
+     * @param compressionLevel The deflate level for new entries (0-9 or -1 for the default level). 0 stores the entries uncompressed
+     * @param time             The modification time of new entries
+     * @throws IOException If the file could not be opened
+     */
+    public ZipArchiveWriter(final Path file, final int compressionLevel, final long time) throws IOException {
+        this(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16), compressionLevel, time);
+    }
+
+    public ZipArchiveWriter(final OutputStream out, final int compressionLevel, final long time) {
+        if (compressionLevel < -1 || compressionLevel > 9) {
+            throw new IllegalArgumentException("Invalid compression level: " + compressionLevel);
+        }
+        this.out = out;
+        this.compressionLevel = compressionLevel;
+        this.dosTime = toDosTime(time);
+    }
+
+    /**
+     * Copies an entry of another archive without decompressing it.
+     *
+     * @param entry The entry to copy
+     * @param data  The raw data of the entry as returned by {@link ZipArchive#readRaw(ZipArchive.Entry)}
+     * @throws IOException If the entry could not be written
+     */
+    public void writeRaw(final ZipArchive.Entry entry, final byte[] data) throws IOException {
+        this.writeEntry(entry.getName(), entry.getMethod(), entry.getDosTime(), entry.getCrc(), entry.getSize(), data);
+    }
+
+    /**
+     * Compresses and writes a new entry.
+     *
+     * @param name The name of the entry
+     * @param data The uncompressed data
+     * @throws IOException If the entry could not be written
+     */
+    public void write(final String name, final byte[] data) throws IOException {
+        this.write(this.compress(name, data));
+    }
+
+    /**
+     * Writes an entry which was compressed using {@link #compress(String, byte[])}.
+     *
+     * @param entry The compressed entry
+     * @throws IOException If the entry could not be written
+     */
+    public void write(final CompressedEntry entry) throws IOException {
+        this.writeEntry(entry.name, entry.method, entry.dosTime, entry.crc, entry.size, entry.data);
+    }
+
+    /**
+     * Compresses a new entry without writing it. This method can be called from any thread.
+     *
+     * @param name The name of the entry
+     * @param data The uncompressed data
+     * @return The compressed entry
+     */
+    public CompressedEntry compress(final String name, final byte[] data) {
+        return this.compress(name, data, this.dosTime);
+    }
+
+    /**
+     * Compresses the new data of an existing entry without writing it. The modification time of the entry is kept.<br>
+     * This method can be called from any thread.
+     *
+     * @param entry The entry whose data was changed
+     * @param data  The uncompressed data
+     * @return The compressed entry
+     */
+    public CompressedEntry compress(final ZipArchive.Entry entry, final byte[] data) {
+        return this.compress(entry.getName(), data, entry.getDosTime());
+    }
+
+    private CompressedEntry compress(final String name, final byte[] data, final int dosTime) {
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        if (this.compressionLevel == 0) {
+            return new CompressedEntry(name, ZipArchive.Entry.STORED, dosTime, crc.getValue(), data.length, data);
+        }
+
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 64);
+        final Deflater deflater = new Deflater(this.compressionLevel, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            final byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                compressed.write(buffer, 0, deflater.deflate(buffer));
+            }
+        } finally {
+            deflater.end();
+        }
+        return new CompressedEntry(name, ZipArchive.Entry.DEFLATED, dosTime, crc.getValue(), data.length, compressed.toByteArray());
+    }
+
+    /**
+     * Reads the stream fully, then compresses and writes it as a new entry.
+     *
+     * @param name The name of the entry
+     * @param in   The uncompressed data
+     * @throws IOException If the stream could not be read or the entry could not be written
+     */
+    public void write(final String name, final InputStream in) throws IOException {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            data.write(buffer, 0, read);
+        }
+        this.write(name, data.toByteArray());
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            final long directoryOffset = this.offset;
+            final long directorySize = this.centralDirectory.size();
+            this.centralDirectory.writeTo(this.out);
+            this.offset += directorySize;
+
+            final ByteBuffer end = ByteBuffer.allocate(ZIP64_END_SIZE + ZIP64_LOCATOR_SIZE + END_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (this.entryCount >= 0xFFFF || directoryOffset >= 0xFFFFFFFFL || directorySize >= 0xFFFFFFFFL) {
+                end.putInt(ZIP64_END_SIGNATURE);
+                end.putLong(ZIP64_END_SIZE - 12);
+                end.putShort((short) VERSION_ZIP64);
+                end.putShort((short) VERSION_ZIP64);
+                end.putInt(0);
+                end.putInt(0);
+                end.putLong(this.entryCount);
+                end.putLong(this.entryCount);
+                end.putLong(directorySize);
+                end.putLong(directoryOffset);
+
+                end.putInt(ZIP64_LOCATOR_SIGNATURE);
+                end.putInt(0);
+                end.putLong(this.offset);
+                end.putInt(1);
+            }
+            end.putInt(END_SIGNATURE);
+            end.putShort((short) 0);
+            end.putShort((short) 0);
+            end.putShort((short) Math.min(this.entryCount, 0xFFFF));
+            end.putShort((short) Math.min(this.entryCount, 0xFFFF));
+            end.putInt((int) Math.min(directorySize, 0xFFFFFFFFL));
+            end.putInt((int) Math.min(directoryOffset, 0xFFFFFFFFL));
+            end.putShort((short) 0);
+            this.out.write(end.array(), 0, end.position());
+        } finally {
+            this.out.close();
+        }
+    }
+
+    private void writeEntry(final String name, final int method, final int dosTime, final long crc, final long size, final byte[] data) throws IOException {
+        if (!this.names.add(name)) {
+            throw new ZipException("Duplicate entry: " + name);
+        }
+        if (size >= 0xFFFFFFFFL) {
+            throw new ZipException("Entry too large: " + name);
+        }
+        final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        final boolean zip64 = this.offset >= 0xFFFFFFFFL;
+        final int version = zip64 ? VERSION_ZIP64 : method == ZipArchive.Entry.STORED ? VERSION_STORED : VERSION_DEFLATED;
+
+        final ByteBuffer header = ByteBuffer.wrap(this.headerBuffer).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(LOCAL_HEADER_SIGNATURE);
+        header.putShort((short) version);
+        header.putShort((short) FLAG_UTF8);
+        header.putShort((short) method);
+        header.putInt(dosTime);
+        header.putInt((int) crc);
+        header.putInt(data.length);
+        header.putInt((int) size);
+        header.putShort((short) nameBytes.length);
+        header.putShort((short) 0);
+        this.out.write(this.headerBuffer, 0, header.position());
+        this.out.write(nameBytes);
+        this.out.write(data);
+
+        header.clear();
+        header.putInt(CENTRAL_HEADER_SIGNATURE);
+        header.putShort((short) version);
+        header.putShort((short) version);
+        header.putShort((short) FLAG_UTF8);
+        header.putShort((short) method);
+        header.putInt(dosTime);
+        header.putInt((int) crc);
+        header.putInt(data.length);
+        header.putInt((int) size);
+        header.putShort((short) nameBytes.length);
+        header.putShort((short) (zip64 ? 12 : 0));
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putInt(0);
+        header.putInt(zip64 ? 0xFFFFFFFF : (int) this.offset);
+        this.centralDirectory.write(this.headerBuffer, 0, header.position());
+        this.centralDirectory.write(nameBytes);
+        if (zip64) {
+            header.clear();
+            header.putShort((short) ZIP64_EXTRA_ID);
+            header.putShort((short) 8);
+            header.putLong(this.offset);
+            this.centralDirectory.write(this.headerBuffer, 0, header.position());
+        }
+
+        this.offset += LOCAL_HEADER_SIZE + nameBytes.length + data.length;
+        this.entryCount++;
+    }
+
+    private static int toDosTime(final long time) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        final int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return 1 << 21 | 1 << 16;
+        }
+        return (year - 1980) << 25
+                | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    public static final class CompressedEntry {
+
+        private final String name;
+        private final int method;
+        private final int dosTime;
+        private final long crc;
+        private final long size;
+        private final byte[] data;
+
+        private CompressedEntry(final String name, final int method, final int dosTime, final long crc, final long size, final byte[] data) {
+            this.name = name;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.size = size;
+            this.data = data;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+    }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader;
+
+import net.raphimc.javadowngrader.transformer.DowngradingTransformer;
+import net.raphimc.javadowngrader.transformer.MethodCallReplacer;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cumulative timings and invocation counts of the downgrading stages.<br>
+ * Collecting is enabled by passing an instance to {@link JavaDowngrader#setMetrics(DowngradeMetrics)}. Disabled metrics
+ * only cost a null check per class. All timers can be updated from multiple threads at once.
+ */
+public class DowngradeMetrics {
+
+    /**
+     * Reading the class file into a class tree
+     */
+    public static final String PARSE = "parse";
+    /**
+     * Writing the class tree back to a class file, including the computation of stack map frames
+     */
+    public static final String WRITE = "write";
+    /**
+     * Downgrading a class without a class tree, including reading and writing it
+     */
+    public static final String STREAMING = "streaming";
+    /**
+     * Attempts to downgrade a class without a class tree which had to fall back to the class tree
+     */
+    public static final String STREAMING_ABORTED = "streamingAborted";
+    /**
+     * Rewriting the call sites of all methods of a class. Includes the time spent in the method call replacers.
+     */
+    public static final String METHOD_CALLS = "methodCalls";
+
+    public static final String PRE_TRANSFORM = "preTransform";
+    public static final String CLASS_REMAPPING = "classRemapping";
+    public static final String POST_TRANSFORM = "postTransform";
+
+    private final ConcurrentMap<String, Timer> stages = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Class<?>, ConcurrentMap<String, Timer>> transformers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Class<?>, Timer> replacers = new ConcurrentHashMap<>();
+
+    /**
+     * Records a stage which isn't specific to a transformer
+     *
+     * @param stage      The name of the stage
+     * @param startNanos The {@link System#nanoTime()} at the start of the stage
+     */
+    public void record(final String stage, final long startNanos) {
+        getTimer(this.stages, stage).record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records a stage of a transformer
+     *
+     * @param transformer The transformer
+     * @param stage       The name of the stage
+     * @param startNanos  The {@link System#nanoTime()} at the start of the stage
+     */
+    public void record(final DowngradingTransformer transformer, final String stage, final long startNanos) {
+        getTimer(getTimers(this.transformers, transformer.getClass()), stage).record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records the creation of a replacement by a method call replacer
+     *
+     * @param replacer   The method call replacer
+     * @param startNanos The {@link System#nanoTime()} before the replacement was requested
+     */
+    public void record(final MethodCallReplacer replacer, final long startNanos) {
+        getTimer(this.replacers, replacer.getClass()).record(System.nanoTime() - startNanos);
+    }
+
+    public Map<String, Timer> getStages() {
+        return new TreeMap<>(this.stages);
+    }
+
+    public Map<String, Map<String, Timer>> getTransformers() {
+        final Map<String, Map<String, Timer>> transformers = new TreeMap<>();
+        this.transformers.forEach((transformer, stages) -> transformers.put(transformer.getSimpleName(), new TreeMap<>(stages)));
+        return transformers;
+    }
+
+    public Map<String, Timer> getReplacers() {
+        final Map<String, Timer> replacers = new TreeMap<>();
+        this.replacers.forEach((replacer, timer) -> replacers.put(replacer.getName(), timer));
+        return replacers;
+    }
+
+    /**
+     * @return All timers as a json object with the keys {@code stages}, {@code transformers} and {@code replacers}
+     */
+    public String toJson() {
+        final StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"stages\": ");
+        appendTimers(json, this.getStages(), "  ");
+        json.append(",\n  \"transformers\": {");
+        boolean first = true;
+        for (Map.Entry<String, Map<String, Timer>> entry : this.getTransformers().entrySet()) {
+            json.append(first ? "\n" : ",\n").append("    ");
+            appendString(json, entry.getKey());
+            json.append(": ");
+            appendTimers(json, entry.getValue(), "    ");
+            first = false;
+        }
+        json.append(first ? "}" : "\n  }");
+        json.append(",\n  \"replacers\": ");
+        appendTimers(json, this.getReplacers(), "  ");
+        return json.append("\n}\n").toString();
+    }
+
+    private static <K> Timer getTimer(final ConcurrentMap<K, Timer> timers, final K key) {
+        // ConcurrentHashMap#computeIfAbsent locks the bin in Java 8 even if the key is present
+        final Timer timer = timers.get(key);
+        if (timer != null) return timer;
+        return timers.computeIfAbsent(key, k -> new Timer());
+    }
+
+    private static ConcurrentMap<String, Timer> getTimers(final ConcurrentMap<Class<?>, ConcurrentMap<String, Timer>> timers, final Class<?> key) {
+        final ConcurrentMap<String, Timer> stages = timers.get(key);
+        if (stages != null) return stages;
+        return timers.computeIfAbsent(key, k -> new ConcurrentHashMap<>());
+    }
+
+    private static void appendTimers(final StringBuilder json, final Map<String, Timer> timers, final String indent) {
+        if (timers.isEmpty()) {
+            json.append("{}");
+            return;
+        }
+        json.append('{');
+        boolean first = true;
+        for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+            json.append(first ? "\n" : ",\n").append(indent).append("  ");
+            appendString(json, entry.getKey());
+            json.append(": {\"count\": ").append(entry.getValue().getCount()).append(", \"nanos\": ").append(entry.getValue().getNanos()).append('}');
+            first = false;
+        }
+        json.append('\n').append(indent).append('}');
+    }
+
+    private static void appendString(final StringBuilder json, final String s) {
+        json.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    public static final class Timer {
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        private void record(final long nanos) {
+            this.count.increment();
+            this.nanos.add(nanos);
+        }
+
+        public long getCount() {
+            return this.count.sum();
+        }
+
+        public long getNanos() {
+            return this.nanos.sum();
+        }
+
+    }
+
+}
@@ -19,6 +19,7 @@ package net.raphimc.javadowngrader;
 
 import net.raphimc.javadowngrader.transformer.DowngradeResult;
 import net.raphimc.javadowngrader.transformer.DowngradingTransformer;
+import net.raphimc.javadowngrader.transformer.TransformerChain;
 import net.raphimc.javadowngrader.transformer.j10.Java11ToJava10;
 import net.raphimc.javadowngrader.transformer.j11.Java12ToJava11;
 import net.raphimc.javadowngrader.transformer.j12.Java13ToJava12;
@@ -36,10 +37,14 @@ import org.objectweb.asm.tree.ClassNode;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class JavaDowngrader {
 
     private static final List<DowngradingTransformer> TRANSFORMER = new ArrayList<>();
+    private static final Map<Integer, TransformerChain> CHAINS = new ConcurrentHashMap<>();
+    private static volatile DowngradeMetrics metrics;
 
     static {
         TRANSFORMER.add(new Java21ToJava20());
@@ -90,4 +95,53 @@ public class JavaDowngrader {
         return result;
     }
 
+    /**
+     * Downgrades the given class to the target version using the compiled {@link TransformerChain}
+     *
+     * @param classNode     The class to downgrade
+     * @param targetVersion The target Java version
+     * @param depCollector  The {@link RuntimeDepCollector} to use to collect runtime dependencies
+     * @return The {@link DowngradeResult}
+     * @see #compile(int)
+     */
+    public static DowngradeResult downgradeCompiled(final ClassNode classNode, final int targetVersion, final RuntimeDepCollector depCollector) {
+        return compile(targetVersion).transform(classNode, depCollector);
+    }
+
+    /**
+     * Compiles all transformers down to the target version into a single {@link TransformerChain}.<br>
+     * The chain produces equivalent output to {@link #downgrade(ClassNode, int, RuntimeDepCollector)} but fuses the
+     * transformers into as few passes over the class as possible. Chains are cached per target version.
+     *
+     * @param targetVersion The target Java version
+     * @return The {@link TransformerChain}
+     */
+    public static TransformerChain compile(final int targetVersion) {
+        return CHAINS.computeIfAbsent(targetVersion, version -> {
+            final List<DowngradingTransformer> transformers = new ArrayList<>();
+            for (DowngradingTransformer transformer : TRANSFORMER) {
+                if (transformer.getTargetVersion() >= version) {
+                    transformers.add(transformer);
+                }
+            }
+            return new TransformerChain(transformers);
+        });
+    }
+
+    /**
+     * Enables collecting timings of all following downgrades into the given {@link DowngradeMetrics}
+     *
+     * @param metrics The metrics to record to or null to disable collecting
+     */
+    public static void setMetrics(final DowngradeMetrics metrics) {
+        JavaDowngrader.metrics = metrics;
+    }
+
+    /**
+     * @return The {@link DowngradeMetrics} which are currently recorded to or null if collecting is disabled
+     */
+    public static DowngradeMetrics getMetrics() {
+        return metrics;
+    }
+
 }
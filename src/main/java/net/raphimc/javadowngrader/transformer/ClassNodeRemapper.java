@@ -0,0 +1,263 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.transformer;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.commons.Remapper;
+import org.objectweb.asm.tree.*;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Remaps the class references of a {@link ClassNode} in place.<br>
+ * Every string is first checked for containing one of the remapped names, so only the nodes which actually reference
+ * a remapped class are touched and no copy of the class is created.
+ */
+final class ClassNodeRemapper {
+
+    private final Remapper remapper;
+    private final String[] names;
+
+    ClassNodeRemapper(final Remapper remapper, final Collection<String> names) {
+        this.remapper = remapper;
+        this.names = names.toArray(new String[0]);
+    }
+
+    void remap(final ClassNode classNode, final DowngradingTransformer transformer, final DowngradeResult result) {
+        classNode.name = this.type(classNode.name);
+        classNode.signature = this.signature(classNode.signature, false);
+        classNode.superName = this.type(classNode.superName);
+        this.types(classNode.interfaces);
+        if (classNode.module != null) {
+            classNode.module.mainClass = this.type(classNode.module.mainClass);
+            this.types(classNode.module.uses);
+            if (classNode.module.provides != null) {
+                for (ModuleProvideNode provide : classNode.module.provides) {
+                    provide.service = this.type(provide.service);
+                    this.types(provide.providers);
+                }
+            }
+        }
+        classNode.outerClass = this.type(classNode.outerClass);
+        classNode.outerMethodDesc = this.methodDesc(classNode.outerMethodDesc);
+        this.annotations(classNode.visibleAnnotations);
+        this.annotations(classNode.invisibleAnnotations);
+        this.annotations(classNode.visibleTypeAnnotations);
+        this.annotations(classNode.invisibleTypeAnnotations);
+        if (classNode.innerClasses != null) {
+            for (InnerClassNode innerClass : classNode.innerClasses) {
+                if (this.mentions(innerClass.name)) {
+                    innerClass.innerName = this.remapper.mapInnerClassName(innerClass.name, innerClass.outerName, innerClass.innerName);
+                    innerClass.name = this.remapper.mapType(innerClass.name);
+                }
+                innerClass.outerName = this.type(innerClass.outerName);
+            }
+        }
+        classNode.nestHostClass = this.type(classNode.nestHostClass);
+        this.types(classNode.nestMembers);
+        this.types(classNode.permittedSubclasses);
+        if (classNode.recordComponents != null) {
+            for (RecordComponentNode recordComponent : classNode.recordComponents) {
+                recordComponent.descriptor = this.desc(recordComponent.descriptor);
+                recordComponent.signature = this.signature(recordComponent.signature, true);
+                this.annotations(recordComponent.visibleAnnotations);
+                this.annotations(recordComponent.invisibleAnnotations);
+                this.annotations(recordComponent.visibleTypeAnnotations);
+                this.annotations(recordComponent.invisibleTypeAnnotations);
+            }
+        }
+        for (FieldNode field : classNode.fields) {
+            field.desc = this.desc(field.desc);
+            field.signature = this.signature(field.signature, true);
+            this.annotations(field.visibleAnnotations);
+            this.annotations(field.invisibleAnnotations);
+            this.annotations(field.visibleTypeAnnotations);
+            this.annotations(field.invisibleTypeAnnotations);
+        }
+        for (MethodNode method : classNode.methods) {
+            // The remapper reports a frame recalculation request for every class it replaces
+            final int frameRequests = result.getUnattributedFrameRequests();
+            this.remap(method);
+            if (result.getUnattributedFrameRequests() > frameRequests) {
+                result.markModified(method, transformer, null, frameRequests);
+            }
+        }
+    }
+
+    private void remap(final MethodNode method) {
+        method.desc = this.methodDesc(method.desc);
+        method.signature = this.signature(method.signature, false);
+        this.types(method.exceptions);
+        this.annotations(method.visibleAnnotations);
+        this.annotations(method.invisibleAnnotations);
+        this.annotations(method.visibleTypeAnnotations);
+        this.annotations(method.invisibleTypeAnnotations);
+        this.parameterAnnotations(method.visibleParameterAnnotations);
+        this.parameterAnnotations(method.invisibleParameterAnnotations);
+        method.annotationDefault = this.value(method.annotationDefault);
+
+        for (AbstractInsnNode insn : method.instructions) {
+            switch (insn.getType()) {
+                case AbstractInsnNode.TYPE_INSN:
+                    final TypeInsnNode typeInsn = (TypeInsnNode) insn;
+                    typeInsn.desc = this.type(typeInsn.desc);
+                    break;
+                case AbstractInsnNode.FIELD_INSN:
+                    final FieldInsnNode fieldInsn = (FieldInsnNode) insn;
+                    fieldInsn.owner = this.type(fieldInsn.owner);
+                    fieldInsn.desc = this.desc(fieldInsn.desc);
+                    break;
+                case AbstractInsnNode.METHOD_INSN:
+                    final MethodInsnNode methodInsn = (MethodInsnNode) insn;
+                    methodInsn.owner = this.type(methodInsn.owner);
+                    methodInsn.desc = this.methodDesc(methodInsn.desc);
+                    break;
+                case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
+                    final InvokeDynamicInsnNode invokeDynamicInsn = (InvokeDynamicInsnNode) insn;
+                    invokeDynamicInsn.desc = this.methodDesc(invokeDynamicInsn.desc);
+                    invokeDynamicInsn.bsm = (Handle) this.value(invokeDynamicInsn.bsm);
+                    for (int i = 0; i < invokeDynamicInsn.bsmArgs.length; i++) {
+                        invokeDynamicInsn.bsmArgs[i] = this.value(invokeDynamicInsn.bsmArgs[i]);
+                    }
+                    break;
+                case AbstractInsnNode.LDC_INSN:
+                    final LdcInsnNode ldcInsn = (LdcInsnNode) insn;
+                    ldcInsn.cst = this.value(ldcInsn.cst);
+                    break;
+                case AbstractInsnNode.MULTIANEWARRAY_INSN:
+                    final MultiANewArrayInsnNode multiANewArrayInsn = (MultiANewArrayInsnNode) insn;
+                    multiANewArrayInsn.desc = this.desc(multiANewArrayInsn.desc);
+                    break;
+                case AbstractInsnNode.FRAME:
+                    final FrameNode frame = (FrameNode) insn;
+                    this.frameTypes(frame.local);
+                    this.frameTypes(frame.stack);
+                    break;
+            }
+            this.annotations(insn.visibleTypeAnnotations);
+            this.annotations(insn.invisibleTypeAnnotations);
+        }
+        if (method.tryCatchBlocks != null) {
+            for (TryCatchBlockNode tryCatchBlock : method.tryCatchBlocks) {
+                tryCatchBlock.type = this.type(tryCatchBlock.type);
+                this.annotations(tryCatchBlock.visibleTypeAnnotations);
+                this.annotations(tryCatchBlock.invisibleTypeAnnotations);
+            }
+        }
+        if (method.localVariables != null) {
+            for (LocalVariableNode localVariable : method.localVariables) {
+                localVariable.desc = this.desc(localVariable.desc);
+                localVariable.signature = this.signature(localVariable.signature, true);
+            }
+        }
+        this.annotations(method.visibleLocalVariableAnnotations);
+        this.annotations(method.invisibleLocalVariableAnnotations);
+    }
+
+    private void annotations(final List<? extends AnnotationNode> annotations) {
+        if (annotations == null) return;
+        for (AnnotationNode annotation : annotations) {
+            this.annotation(annotation);
+        }
+    }
+
+    private void parameterAnnotations(final List<AnnotationNode>[] parameterAnnotations) {
+        if (parameterAnnotations == null) return;
+        for (List<AnnotationNode> annotations : parameterAnnotations) {
+            this.annotations(annotations);
+        }
+    }
+
+    private void annotation(final AnnotationNode annotation) {
+        annotation.desc = this.desc(annotation.desc);
+        if (annotation.values == null) return;
+        for (int i = 1; i < annotation.values.size(); i += 2) {
+            annotation.values.set(i, this.value(annotation.values.get(i)));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object value(final Object value) {
+        if (value instanceof String[]) {
+            final String[] enumValue = (String[]) value;
+            enumValue[0] = this.desc(enumValue[0]);
+            return enumValue;
+        } else if (value instanceof AnnotationNode) {
+            this.annotation((AnnotationNode) value);
+            return value;
+        } else if (value instanceof List) {
+            final List<Object> values = (List<Object>) value;
+            for (int i = 0; i < values.size(); i++) {
+                values.set(i, this.value(values.get(i)));
+            }
+            return values;
+        } else if (value instanceof Handle) {
+            final Handle handle = (Handle) value;
+            if (!this.mentions(handle.getOwner()) && !this.mentions(handle.getDesc())) {
+                return handle;
+            }
+        } else if (value == null || value instanceof String || value instanceof Number || value instanceof Boolean || value instanceof Character) {
+            return value;
+        }
+        // Types and constant dynamics are rare enough to always go through the remapper
+        return this.remapper.mapValue(value);
+    }
+
+    private void frameTypes(final List<Object> types) {
+        if (types == null) return;
+        for (int i = 0; i < types.size(); i++) {
+            final Object type = types.get(i);
+            if (type instanceof String) {
+                types.set(i, this.type((String) type));
+            }
+        }
+    }
+
+    private void types(final List<String> types) {
+        if (types == null) return;
+        for (int i = 0; i < types.size(); i++) {
+            types.set(i, this.type(types.get(i)));
+        }
+    }
+
+    private String type(final String type) {
+        return this.mentions(type) ? this.remapper.mapType(type) : type;
+    }
+
+    private String desc(final String desc) {
+        return this.mentions(desc) ? this.remapper.mapDesc(desc) : desc;
+    }
+
+    private String methodDesc(final String desc) {
+        return this.mentions(desc) ? this.remapper.mapMethodDesc(desc) : desc;
+    }
+
+    private String signature(final String signature, final boolean typeSignature) {
+        return this.mentions(signature) ? this.remapper.mapSignature(signature, typeSignature) : signature;
+    }
+
+    private boolean mentions(final String s) {
+        if (s == null) return false;
+        for (String name : this.names) {
+            if (s.contains(name)) return true;
+        }
+        return false;
+    }
+
+}
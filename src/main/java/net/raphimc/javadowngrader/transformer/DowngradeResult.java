@@ -17,10 +17,16 @@
  */
 package net.raphimc.javadowngrader.transformer;
 
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.*;
+
 public class DowngradeResult {
 
     private int transformerCount;
     private boolean requiresStackMapFrames;
+    private int unattributedFrameRequests;
+    private Map<MethodNode, ModifiedMethod> modifiedMethods;
 
     /**
      * @return The amount of transformers that were applied
@@ -44,10 +50,67 @@ public class DowngradeResult {
     }
 
     /**
-     * Sets the class to require stack map frame recalculation.
+     * Sets the class to require stack map frame recalculation.<br>
+     * Calls made while a method call replacer or a class replacement is applied are attributed to the modified method.
      */
     public void setRequiresStackMapFrames() {
         this.requiresStackMapFrames = true;
+        this.unattributedFrameRequests++;
+    }
+
+    /**
+     * Sets the given method to require stack map frame recalculation.
+     *
+     * @param methodNode The method
+     */
+    public void setRequiresStackMapFrames(final MethodNode methodNode) {
+        this.requiresStackMapFrames = true;
+        this.getModifiedMethod(methodNode).requiresStackMapFrames = true;
+    }
+
+    /**
+     * @param methodNode The method
+     * @return If the frames of the given method have to be recalculated. This is always the case if the class requires
+     * frame recalculation for a reason which could not be attributed to a single method
+     */
+    public boolean requiresStackMapFrames(final MethodNode methodNode) {
+        if (this.unattributedFrameRequests > 0) {
+            return this.requiresStackMapFrames;
+        }
+        final ModifiedMethod modifiedMethod = this.modifiedMethods == null ? null : this.modifiedMethods.get(methodNode);
+        return modifiedMethod != null && modifiedMethod.requiresStackMapFrames;
+    }
+
+    /**
+     * Marks the given method as modified. Changes to the access flags of a method don't need to be reported.
+     *
+     * @param methodNode  The modified method
+     * @param transformer The transformer which modified the method
+     * @param replacer    The method call replacer which modified the method or null
+     */
+    public void markModified(final MethodNode methodNode, final DowngradingTransformer transformer, final MethodCallReplacer replacer) {
+        final ModifiedMethod modifiedMethod = this.getModifiedMethod(methodNode);
+        if (transformer != null) {
+            modifiedMethod.transformers.add(transformer);
+        }
+        if (replacer != null) {
+            modifiedMethod.replacers.add(replacer);
+        }
+    }
+
+    /**
+     * @param methodNode The method
+     * @return If the given method was reported as modified
+     */
+    public boolean isModified(final MethodNode methodNode) {
+        return this.modifiedMethods != null && this.modifiedMethods.containsKey(methodNode);
+    }
+
+    /**
+     * @return All methods which were reported as modified
+     */
+    public Map<MethodNode, ModifiedMethod> getModifiedMethods() {
+        return this.modifiedMethods == null ? Collections.emptyMap() : Collections.unmodifiableMap(this.modifiedMethods);
     }
 
     /**
@@ -58,6 +121,67 @@ public class DowngradeResult {
     public void add(final DowngradeResult result) {
         this.transformerCount += result.transformerCount;
         this.requiresStackMapFrames |= result.requiresStackMapFrames;
+        this.unattributedFrameRequests += result.unattributedFrameRequests;
+        if (result.modifiedMethods != null) {
+            result.modifiedMethods.forEach((methodNode, other) -> {
+                final ModifiedMethod modifiedMethod = this.getModifiedMethod(methodNode);
+                modifiedMethod.transformers.addAll(other.transformers);
+                modifiedMethod.replacers.addAll(other.replacers);
+                modifiedMethod.requiresStackMapFrames |= other.requiresStackMapFrames;
+            });
+        }
+    }
+
+    int getUnattributedFrameRequests() {
+        return this.unattributedFrameRequests;
+    }
+
+    /**
+     * Marks the given method as modified and attributes all frame recalculation requests made since the given count to it.
+     */
+    void markModified(final MethodNode methodNode, final DowngradingTransformer transformer, final MethodCallReplacer replacer, final int unattributedFrameRequests) {
+        this.markModified(methodNode, transformer, replacer);
+        if (this.unattributedFrameRequests > unattributedFrameRequests) {
+            this.unattributedFrameRequests = unattributedFrameRequests;
+            this.setRequiresStackMapFrames(methodNode);
+        }
+    }
+
+    private ModifiedMethod getModifiedMethod(final MethodNode methodNode) {
+        if (this.modifiedMethods == null) {
+            this.modifiedMethods = new IdentityHashMap<>();
+        }
+        return this.modifiedMethods.computeIfAbsent(methodNode, m -> new ModifiedMethod());
+    }
+
+    public static final class ModifiedMethod {
+        private final Set<DowngradingTransformer> transformers = new LinkedHashSet<>();
+        private final Set<MethodCallReplacer> replacers = new LinkedHashSet<>();
+        private boolean requiresStackMapFrames;
+
+        private ModifiedMethod() {
+        }
+
+        /**
+         * @return The transformers which modified the method
+         */
+        public Set<DowngradingTransformer> getTransformers() {
+            return Collections.unmodifiableSet(this.transformers);
+        }
+
+        /**
+         * @return The method call replacers which modified the method
+         */
+        public Set<MethodCallReplacer> getReplacers() {
+            return Collections.unmodifiableSet(this.replacers);
+        }
+
+        /**
+         * @return If the frames of the method have to be recalculated
+         */
+        public boolean requiresStackMapFrames() {
+            return this.requiresStackMapFrames;
+        }
     }
 
 }
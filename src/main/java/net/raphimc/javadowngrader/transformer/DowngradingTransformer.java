@@ -19,27 +19,21 @@ package net.raphimc.javadowngrader.transformer;
 
 import net.raphimc.javadowngrader.RuntimeDepCollector;
 import net.raphimc.javadowngrader.util.Constants;
-import org.objectweb.asm.Handle;
-import org.objectweb.asm.Opcodes;
-import org.objectweb.asm.Type;
-import org.objectweb.asm.commons.ClassRemapper;
-import org.objectweb.asm.commons.Remapper;
-import org.objectweb.asm.tree.*;
-
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
+import org.objectweb.asm.tree.ClassNode;
+
 import java.util.*;
 import java.util.stream.Collectors;
 
 public abstract class DowngradingTransformer {
 
-    private static final String BRIDGE_PREFIX = "javadowngrader-bridge$";
-
     private final int sourceVersion;
     private final int targetVersion;
 
-    private final Map<String, MethodCallReplacer> methodCallReplacers = new HashMap<>();
+    private final MethodIndex<MethodCallReplacer> methodCallReplacers = new MethodIndex<>();
     private final Map<String, ClassReplacement> classReplacements = new HashMap<>();
+    private final Set<String> hookTriggers = new HashSet<>();
+    private int hookTriggerAccess;
+    private TransformerChain chain;
 
     public DowngradingTransformer(final int sourceVersion, final int targetVersion) {
         this.sourceVersion = sourceVersion;
@@ -51,11 +45,11 @@ public abstract class DowngradingTransformer {
     }
 
     protected void addMethodCallReplacer(final int opcode, final String owner, final String name, final MethodCallReplacer replacer) {
-        this.methodCallReplacers.put(owner + ';' + name, replacer);
+        this.methodCallReplacers.put(owner, name, null, replacer);
     }
 
     protected void addMethodCallReplacer(final int opcode, final String owner, final String name, final String descriptor, final MethodCallReplacer replacer) {
-        this.methodCallReplacers.put(owner + ';' + name + descriptor, replacer);
+        this.methodCallReplacers.put(owner, name, descriptor, replacer);
     }
 
     protected void addClassReplacement(final String name, final ClassReplacement replacement) {
@@ -70,6 +64,21 @@ public abstract class DowngradingTransformer {
         addClassReplacement(name, ClassReplacement.ofRuntime(name, extraDeps));
     }
 
+    /**
+     * Registers a string which makes the pre/post transform hooks of this transformer relevant for a class if any utf8
+     * constant of the class contains it. Transformers with hooks but without triggers disable the constant pool prescan.
+     */
+    protected void addHookTrigger(final String utf8) {
+        this.hookTriggers.add(utf8);
+    }
+
+    /**
+     * Registers class access flags which make the pre/post transform hooks of this transformer relevant for a class.
+     */
+    protected void addHookTriggerAccess(final int access) {
+        this.hookTriggerAccess |= access;
+    }
+
     public void transform(final ClassNode classNode, final DowngradeResult result) {
         transform(classNode, RuntimeDepCollector.NULL, result);
     }
@@ -82,113 +91,61 @@ public abstract class DowngradingTransformer {
             return;
         }
 
-        this.preTransform(classNode, result);
-
-        int bridge = 100;
-        for (final MethodNode methodNode : classNode.methods) {
-            if (methodNode.name.startsWith(BRIDGE_PREFIX)) {
-                bridge = Integer.parseInt(methodNode.name.substring(BRIDGE_PREFIX.length())) + 1;
-            }
+        TransformerChain chain = this.chain;
+        if (chain == null) {
+            this.chain = chain = new TransformerChain(Collections.singletonList(this));
         }
+        chain.transform(classNode, depCollector, result);
+    }
 
-        if (!this.methodCallReplacers.isEmpty()) {
-            for (MethodNode methodNode : new ArrayList<>(classNode.methods)) {
-                for (AbstractInsnNode insn : methodNode.instructions.toArray()) {
-                    if (insn instanceof MethodInsnNode) {
-                        final MethodInsnNode methodInsn = (MethodInsnNode) insn;
-
-                        MethodCallReplacer replacer = this.methodCallReplacers.get(methodInsn.owner + ';' + methodInsn.name + methodInsn.desc);
-                        if (replacer == null) {
-                            replacer = this.methodCallReplacers.get(methodInsn.owner + ';' + methodInsn.name);
-                        }
-                        if (replacer != null) {
-                            methodNode.instructions.insertBefore(
-                                    methodInsn, replacer.getReplacement(classNode, methodNode, methodInsn.name, methodInsn.desc, depCollector, result)
-                            );
-                            methodNode.instructions.remove(methodInsn);
-
-                            result.incrementTransformerCount();
-                        }
-                    } else if (insn instanceof InvokeDynamicInsnNode) {
-                        final InvokeDynamicInsnNode invokeDynamicInsn = (InvokeDynamicInsnNode) insn;
-
-                        if (invokeDynamicInsn.bsm.getOwner().equals("java/lang/invoke/LambdaMetafactory") && invokeDynamicInsn.bsm.getName().equals("metafactory") && invokeDynamicInsn.bsm.getDesc().equals(Constants.METAFACTORY_DESC)) {
-                            for (int i = 0; i < invokeDynamicInsn.bsmArgs.length; i++) {
-                                final Object arg = invokeDynamicInsn.bsmArgs[i];
-                                if (!(arg instanceof Handle)) continue;
-                                final Handle handle = (Handle) arg;
-
-                                MethodCallReplacer replacer = this.methodCallReplacers.get(handle.getOwner() + ';' + handle.getName() + handle.getDesc());
-                                if (replacer == null) {
-                                    replacer = this.methodCallReplacers.get(handle.getOwner() + ';' + handle.getName());
-                                }
-                                if (replacer != null) {
-                                    final String desc = handle.getTag() == Opcodes.H_INVOKESTATIC || handle.getTag() == Opcodes.H_GETSTATIC || handle.getTag() == Opcodes.H_PUTSTATIC
-                                            ? handle.getDesc()
-                                            : "(L" + handle.getOwner() + ';' + handle.getDesc().substring(1);
-                                    final MethodNode bridgeMethod = new MethodNode(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, BRIDGE_PREFIX + (bridge++), desc, null, null);
-                                    final Type[] argumentTypes = Type.getArgumentTypes(desc);
-                                    for (int i1 = 0; i1 < argumentTypes.length; i1++) {
-                                        bridgeMethod.instructions.add(new VarInsnNode(argumentTypes[i1].getOpcode(Opcodes.ILOAD), i1));
-                                    }
-                                    bridgeMethod.instructions.add(replacer.getReplacement(
-                                            classNode, bridgeMethod, handle.getName(), handle.getDesc(), depCollector, result
-                                    ));
-                                    bridgeMethod.instructions.add(new InsnNode(Type.getReturnType(handle.getDesc()).getOpcode(Opcodes.IRETURN)));
-                                    classNode.methods.add(bridgeMethod);
-
-                                    invokeDynamicInsn.bsmArgs[i] = new Handle(Opcodes.H_INVOKESTATIC, classNode.name, bridgeMethod.name, bridgeMethod.desc, (classNode.access & Opcodes.ACC_INTERFACE) != 0);
-                                    result.incrementTransformerCount();
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-        }
+    protected void preTransform(final ClassNode classNode, final DowngradeResult result) {
+    }
 
-        if (!this.classReplacements.isEmpty()) {
-            final ClassNode remappedNode = new ClassNode();
-            final ClassRemapper classRemapper = new ClassRemapper(remappedNode, new Remapper() {
-                @Override
-                public String map(String internalName) {
-                    final ClassReplacement replacement = classReplacements.get(internalName);
-                    if (replacement == null) {
-                        return internalName;
-                    }
-                    result.setRequiresStackMapFrames();
-                    if (replacement.includeDependency) {
-                        depCollector.accept(replacement.newName);
-                        replacement.extraDependencies.forEach(depCollector);
-                    }
-                    return replacement.newName;
-                }
-            });
-            classNode.accept(classRemapper);
-
-            // Modify the class inplace
-            for (Field field : ClassNode.class.getDeclaredFields()) {
-                if (Modifier.isStatic(field.getModifiers())) continue;
-                if (Modifier.isFinal(field.getModifiers())) continue;
-                if (!Modifier.isPublic(field.getModifiers())) continue;
-
-                try {
-                    field.set(classNode, field.get(remappedNode));
-                } catch (Throwable t) {
-                    throw new RuntimeException("Failed to merge class nodes", t);
-                }
-            }
-        }
+    protected void postTransform(final ClassNode classNode, final DowngradeResult result) {
+    }
 
-        this.postTransform(classNode, result);
+    MethodIndex<MethodCallReplacer> getMethodCallReplacers() {
+        return this.methodCallReplacers;
+    }
 
-        classNode.version = this.targetVersion;
+    boolean hasClassReplacements() {
+        return !this.classReplacements.isEmpty();
     }
 
-    protected void preTransform(final ClassNode classNode, final DowngradeResult result) {
+    Set<String> getClassReplacementNames() {
+        return this.classReplacements.keySet();
     }
 
-    protected void postTransform(final ClassNode classNode, final DowngradeResult result) {
+    Set<String> getHookTriggers() {
+        return this.hookTriggers;
+    }
+
+    int getHookTriggerAccess() {
+        return this.hookTriggerAccess;
+    }
+
+    String mapClass(final String internalName, final RuntimeDepCollector depCollector, final DowngradeResult result) {
+        final ClassReplacement replacement = this.classReplacements.get(internalName);
+        if (replacement == null) {
+            return internalName;
+        }
+        result.setRequiresStackMapFrames();
+        if (replacement.includeDependency) {
+            depCollector.accept(replacement.newName);
+            replacement.extraDependencies.forEach(depCollector);
+        }
+        return replacement.newName;
+    }
+
+    boolean overridesHook(final String name) {
+        for (Class<?> clazz = this.getClass(); clazz != DowngradingTransformer.class; clazz = clazz.getSuperclass()) {
+            try {
+                clazz.getDeclaredMethod(name, ClassNode.class, DowngradeResult.class);
+                return true;
+            } catch (NoSuchMethodException ignored) {
+            }
+        }
+        return false;
     }
 
     public int getSourceVersion() {
@@ -0,0 +1,87 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.transformer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A two level index of values by method owner, name and optionally descriptor.<br>
+ * Lookups reuse the strings of the instruction and do not allocate.
+ */
+final class MethodIndex<T> {
+
+    private final Map<String, Map<String, Entry<T>>> owners = new HashMap<>();
+
+    void put(final String owner, final String name, final String descriptor, final T value) {
+        final Entry<T> entry = this.owners.computeIfAbsent(owner, k -> new HashMap<>()).computeIfAbsent(name, k -> new Entry<>());
+        if (descriptor == null) {
+            entry.wildcard = value;
+        } else {
+            if (entry.descriptors == null) {
+                entry.descriptors = new HashMap<>();
+            }
+            entry.descriptors.put(descriptor, value);
+        }
+    }
+
+    Entry<T> get(final String owner, final String name) {
+        final Map<String, Entry<T>> names = this.owners.get(owner);
+        if (names == null) return null;
+        return names.get(name);
+    }
+
+    boolean isEmpty() {
+        return this.owners.isEmpty();
+    }
+
+    void forEach(final Visitor<T> visitor) {
+        for (Map.Entry<String, Map<String, Entry<T>>> owner : this.owners.entrySet()) {
+            for (Map.Entry<String, Entry<T>> name : owner.getValue().entrySet()) {
+                final Entry<T> entry = name.getValue();
+                if (entry.wildcard != null) {
+                    visitor.visit(owner.getKey(), name.getKey(), null, entry.wildcard);
+                }
+                if (entry.descriptors != null) {
+                    for (Map.Entry<String, T> descriptor : entry.descriptors.entrySet()) {
+                        visitor.visit(owner.getKey(), name.getKey(), descriptor.getKey(), descriptor.getValue());
+                    }
+                }
+            }
+        }
+    }
+
+    static final class Entry<T> {
+        private T wildcard;
+        private Map<String, T> descriptors;
+
+        T getExact(final String descriptor) {
+            return this.descriptors == null ? null : this.descriptors.get(descriptor);
+        }
+
+        T getWildcard() {
+            return this.wildcard;
+        }
+    }
+
+    @FunctionalInterface
+    interface Visitor<T> {
+        void visit(final String owner, final String name, final String descriptor, final T value);
+    }
+
+}
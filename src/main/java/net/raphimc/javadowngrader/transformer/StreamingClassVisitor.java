@@ -0,0 +1,158 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.transformer;
+
+import net.raphimc.javadowngrader.DowngradeMetrics;
+import net.raphimc.javadowngrader.RuntimeDepCollector;
+import net.raphimc.javadowngrader.util.Constants;
+import org.objectweb.asm.*;
+import org.objectweb.asm.tree.*;
+
+import java.util.List;
+
+/**
+ * Applies the method call replacers of a {@link TransformerChain} while a class is streamed from a reader to a writer.<br>
+ * Throws {@link #UNSUPPORTED} as soon as the class contains something which can only be downgraded using the tree API.
+ */
+final class StreamingClassVisitor extends ClassVisitor {
+
+    static final RuntimeException UNSUPPORTED = new RuntimeException("Class requires the tree API", null, false, false) {
+    };
+
+    private final TransformerChain chain;
+    private final int from;
+    private final int version;
+    private final RuntimeDepCollector depCollector;
+    private final DowngradeResult result;
+    private final DowngradeMetrics metrics;
+
+    StreamingClassVisitor(final ClassVisitor classVisitor, final TransformerChain chain, final int from, final int version, final RuntimeDepCollector depCollector, final DowngradeResult result, final DowngradeMetrics metrics) {
+        super(Opcodes.ASM9, classVisitor);
+        this.chain = chain;
+        this.from = from;
+        this.version = version;
+        this.depCollector = depCollector;
+        this.result = result;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        super.visit(this.version, access, name, signature, superName, interfaces);
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+        final MethodVisitor methodVisitor = super.visitMethod(access, name, descriptor, signature, exceptions);
+        return methodVisitor == null ? null : new CallSiteVisitor(methodVisitor, this.from);
+    }
+
+    private final class CallSiteVisitor extends MethodVisitor {
+
+        private final int from;
+
+        private CallSiteVisitor(final MethodVisitor methodVisitor, final int from) {
+            super(Opcodes.ASM9, methodVisitor);
+            this.from = from;
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+            final TransformerChain.StageReplacer replacer = StreamingClassVisitor.this.chain.getReplacer(owner, name, descriptor, this.from);
+            if (replacer == null) {
+                super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+                return;
+            }
+            if (!(replacer.replacer instanceof LocalMethodCallReplacer)) {
+                throw UNSUPPORTED;
+            }
+
+            final DowngradeResult result = StreamingClassVisitor.this.result;
+            final DowngradeMetrics metrics = StreamingClassVisitor.this.metrics;
+            final long start = metrics != null ? System.nanoTime() : 0;
+            final InsnList replacement = replacer.replacer.getReplacement(null, null, name, descriptor, StreamingClassVisitor.this.depCollector, result);
+            if (metrics != null) metrics.record(replacer.replacer, start);
+            if (result.requiresStackMapFrames() || mentions(replacement, StreamingClassVisitor.this.chain.getClassReplacementNames())) {
+                throw UNSUPPORTED;
+            }
+            result.incrementTransformerCount();
+
+            // The replacement may use methods which are replaced by the following transformers
+            replacement.accept(new CallSiteVisitor(this.mv, replacer.stage + 1));
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle, Object... bootstrapMethodArguments) {
+            if (bootstrapMethodHandle.getOwner().equals("java/lang/invoke/LambdaMetafactory") && bootstrapMethodHandle.getName().equals("metafactory") && bootstrapMethodHandle.getDesc().equals(Constants.METAFACTORY_DESC)) {
+                for (Object arg : bootstrapMethodArguments) {
+                    if (!(arg instanceof Handle)) continue;
+                    final Handle handle = (Handle) arg;
+                    // Replaced method references need a bridge method which is added to the class
+                    if (StreamingClassVisitor.this.chain.getReplacer(handle.getOwner(), handle.getName(), handle.getDesc(), this.from) != null) {
+                        throw UNSUPPORTED;
+                    }
+                }
+            }
+            super.visitInvokeDynamicInsn(name, descriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+        }
+
+    }
+
+    static boolean mentions(final InsnList instructions, final List<String> names) {
+        for (AbstractInsnNode insn : instructions) {
+            final String owner;
+            final String descriptor;
+            switch (insn.getType()) {
+                case AbstractInsnNode.TYPE_INSN:
+                    owner = ((TypeInsnNode) insn).desc;
+                    descriptor = null;
+                    break;
+                case AbstractInsnNode.FIELD_INSN:
+                    owner = ((FieldInsnNode) insn).owner;
+                    descriptor = ((FieldInsnNode) insn).desc;
+                    break;
+                case AbstractInsnNode.METHOD_INSN:
+                    owner = ((MethodInsnNode) insn).owner;
+                    descriptor = ((MethodInsnNode) insn).desc;
+                    break;
+                case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
+                    // Bootstrap arguments aren't checked, replacements don't create lambdas
+                    owner = ((InvokeDynamicInsnNode) insn).bsm.getOwner();
+                    descriptor = ((InvokeDynamicInsnNode) insn).desc;
+                    break;
+                case AbstractInsnNode.LDC_INSN:
+                    owner = ((LdcInsnNode) insn).cst instanceof Type ? ((LdcInsnNode) insn).cst.toString() : null;
+                    descriptor = null;
+                    break;
+                case AbstractInsnNode.MULTIANEWARRAY_INSN:
+                    owner = null;
+                    descriptor = ((MultiANewArrayInsnNode) insn).desc;
+                    break;
+                default:
+                    continue;
+            }
+            for (String name : names) {
+                if ((owner != null && owner.contains(name)) || (descriptor != null && descriptor.contains(name))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,364 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.transformer;
+
+import net.raphimc.javadowngrader.DowngradeMetrics;
+import net.raphimc.javadowngrader.JavaDowngrader;
+import net.raphimc.javadowngrader.RuntimeDepCollector;
+import net.raphimc.javadowngrader.util.ConstantPoolScanner;
+import net.raphimc.javadowngrader.util.Constants;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.Remapper;
+import org.objectweb.asm.tree.*;
+
+import java.util.*;
+
+/**
+ * A compiled chain of {@link DowngradingTransformer}s which downgrades a class with as few passes over it as possible.<br>
+ * Consecutive transformers are fused into one segment as long as none of them has a pre/post transform hook or class
+ * replacements in between. All method call replacers of a segment are applied in a single walk over every method and
+ * the output of a replacer is only rescanned by the replacers of the following transformers.
+ */
+public class TransformerChain {
+
+    private static final String BRIDGE_PREFIX = "javadowngrader-bridge$";
+
+    private final DowngradingTransformer[] transformers;
+    private final boolean[] segmentStarts;
+    private final boolean[] preTransforms;
+    private final boolean[] postTransforms;
+    private final boolean[] replacesMethodCalls;
+    private final MethodIndex<StageReplacer> methodCallReplacers = new MethodIndex<>();
+    private final ConstantPoolScanner scanner;
+    private final ConstantPoolScanner treeScanner;
+    private final List<String> classReplacementNames = new ArrayList<>();
+
+    /**
+     * @param transformers The transformers to chain, ordered from the highest to the lowest version
+     */
+    public TransformerChain(final List<DowngradingTransformer> transformers) {
+        this.transformers = transformers.toArray(new DowngradingTransformer[0]);
+        this.segmentStarts = new boolean[this.transformers.length];
+        this.preTransforms = new boolean[this.transformers.length];
+        this.postTransforms = new boolean[this.transformers.length];
+        this.replacesMethodCalls = new boolean[this.transformers.length];
+
+        final Set<String> methodKeys = new HashSet<>();
+        final Set<String> utf8Patterns = new HashSet<>();
+        int accessMask = 0;
+        boolean canPrescan = true;
+        for (int i = 0; i < this.transformers.length; i++) {
+            final DowngradingTransformer transformer = this.transformers[i];
+            if (i > 0 && this.transformers[i - 1].getTargetVersion() != transformer.getSourceVersion()) {
+                throw new IllegalArgumentException("Transformers must be ordered and contiguous");
+            }
+
+            this.preTransforms[i] = transformer.overridesHook("preTransform");
+            this.postTransforms[i] = transformer.overridesHook("postTransform");
+            this.replacesMethodCalls[i] = !transformer.getMethodCallReplacers().isEmpty();
+
+            utf8Patterns.addAll(transformer.getClassReplacementNames());
+            utf8Patterns.addAll(transformer.getHookTriggers());
+            this.classReplacementNames.addAll(transformer.getClassReplacementNames());
+            accessMask |= transformer.getHookTriggerAccess();
+            if ((this.preTransforms[i] || this.postTransforms[i]) && transformer.getHookTriggers().isEmpty() && transformer.getHookTriggerAccess() == 0) {
+                canPrescan = false;
+            }
+            this.segmentStarts[i] = i == 0 || this.preTransforms[i] || this.postTransforms[i - 1] || this.transformers[i - 1].hasClassReplacements();
+
+            final int stage = i;
+            transformer.getMethodCallReplacers().forEach((owner, name, descriptor, replacer) -> {
+                final MethodIndex.Entry<StageReplacer> entry = this.methodCallReplacers.get(owner, name);
+                final StageReplacer existing = entry == null ? null : (descriptor == null ? entry.getWildcard() : entry.getExact(descriptor));
+                final StageReplacer stageReplacer = new StageReplacer(stage, replacer);
+                if (existing == null) {
+                    this.methodCallReplacers.put(owner, name, descriptor, stageReplacer);
+                } else {
+                    StageReplacer last = existing;
+                    while (last.next != null) last = last.next;
+                    last.next = stageReplacer;
+                }
+                methodKeys.add(owner + ';' + name + (descriptor == null ? "" : descriptor));
+            });
+        }
+        this.scanner = canPrescan ? new ConstantPoolScanner(methodKeys, utf8Patterns, accessMask) : null;
+        this.treeScanner = canPrescan ? new ConstantPoolScanner(Collections.emptyList(), utf8Patterns, accessMask) : null;
+    }
+
+    /**
+     * Downgrades the given class to the target version of the last transformer in this chain
+     *
+     * @param classNode    The class to downgrade
+     * @param depCollector The {@link RuntimeDepCollector} to use to collect runtime dependencies
+     * @return The {@link DowngradeResult}
+     */
+    public DowngradeResult transform(final ClassNode classNode, final RuntimeDepCollector depCollector) {
+        final DowngradeResult result = new DowngradeResult();
+        this.transform(classNode, depCollector, result);
+        return result;
+    }
+
+    public void transform(final ClassNode classNode, final RuntimeDepCollector depCollector, final DowngradeResult result) {
+        if (this.transformers.length == 0) {
+            return;
+        }
+        if ((classNode.version & 0xFF) > this.transformers[0].getSourceVersion()) {
+            throw new IllegalArgumentException("Input class version is higher than supported");
+        }
+
+        final DowngradeMetrics metrics = JavaDowngrader.getMetrics();
+        int start = 0;
+        while (start < this.transformers.length && (classNode.version & 0xFF) <= this.transformers[start].getTargetVersion()) {
+            start++;
+        }
+        while (start < this.transformers.length) {
+            int end = start + 1;
+            while (end < this.transformers.length && !this.segmentStarts[end]) {
+                end++;
+            }
+            this.transformSegment(classNode, start, end, depCollector, result, metrics);
+            start = end;
+        }
+    }
+
+    /**
+     * Checks the raw class file for anything this chain would change besides the class file version.<br>
+     * If this returns false the class can be downgraded by only setting its version to {@link #getTargetVersion()}.
+     *
+     * @param bytecode The class file
+     * @return If the class needs to be transformed
+     */
+    public boolean requiresTransform(final byte[] bytecode) {
+        if (this.scanner == null || this.transformers.length == 0) {
+            return true;
+        }
+        final int majorVersion = (bytecode[6] & 0xFF) << 8 | (bytecode[7] & 0xFF);
+        // Let classes outside of the supported range take the regular path
+        if (majorVersion > this.getSourceVersion() || majorVersion <= this.getTargetVersion()) {
+            return true;
+        }
+        return this.scanner.matches(bytecode);
+    }
+
+    /**
+     * Downgrades the given class file by streaming it from a {@link ClassReader} to a {@link ClassWriter} without
+     * building a tree of it.<br>
+     * This only works for classes which don't trigger any pre/post transform hooks or class replacements and whose
+     * replaced method calls are all handled by {@link LocalMethodCallReplacer}s which don't require stack map frames.
+     *
+     * @param bytecode     The class file
+     * @param depCollector The {@link RuntimeDepCollector} to use to collect runtime dependencies
+     * @param result       The result to add the {@link DowngradeResult} of the transformation to
+     * @return The downgraded class file or null if the class has to be downgraded using the tree API
+     */
+    public byte[] transformStreaming(final byte[] bytecode, final RuntimeDepCollector depCollector, final DowngradeResult result) {
+        if (this.treeScanner == null || this.transformers.length == 0) {
+            return null;
+        }
+        final int majorVersion = (bytecode[6] & 0xFF) << 8 | (bytecode[7] & 0xFF);
+        if (majorVersion > this.getSourceVersion() || majorVersion <= this.getTargetVersion() || this.treeScanner.matches(bytecode)) {
+            return null;
+        }
+
+        int start = 0;
+        while (majorVersion <= this.transformers[start].getTargetVersion()) {
+            start++;
+        }
+        final List<String> runtimeDeps = new ArrayList<>();
+        final DowngradeResult streamingResult = new DowngradeResult();
+        final ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        try {
+            new ClassReader(bytecode).accept(new StreamingClassVisitor(writer, this, start, this.getTargetVersion(), runtimeDeps::add, streamingResult, JavaDowngrader.getMetrics()), 0);
+        } catch (RuntimeException e) {
+            if (e == StreamingClassVisitor.UNSUPPORTED) {
+                return null;
+            }
+            throw e;
+        }
+        runtimeDeps.forEach(depCollector);
+        result.add(streamingResult);
+        return writer.toByteArray();
+    }
+
+    public int getSourceVersion() {
+        return this.transformers[0].getSourceVersion();
+    }
+
+    public int getTargetVersion() {
+        return this.transformers[this.transformers.length - 1].getTargetVersion();
+    }
+
+    private void transformSegment(final ClassNode classNode, final int from, final int to, final RuntimeDepCollector depCollector, final DowngradeResult result, final DowngradeMetrics metrics) {
+        if (this.preTransforms[from]) {
+            final long start = metrics != null ? System.nanoTime() : 0;
+            this.transformers[from].preTransform(classNode, result);
+            if (metrics != null) metrics.record(this.transformers[from], DowngradeMetrics.PRE_TRANSFORM, start);
+        }
+
+        boolean replacesMethodCalls = false;
+        for (int i = from; i < to; i++) {
+            replacesMethodCalls |= this.replacesMethodCalls[i];
+        }
+        if (replacesMethodCalls) {
+            final long start = metrics != null ? System.nanoTime() : 0;
+            final int[] bridge = {100};
+            for (final MethodNode methodNode : classNode.methods) {
+                if (methodNode.name.startsWith(BRIDGE_PREFIX)) {
+                    bridge[0] = Integer.parseInt(methodNode.name.substring(BRIDGE_PREFIX.length())) + 1;
+                }
+            }
+
+            for (MethodNode methodNode : new ArrayList<>(classNode.methods)) {
+                this.replaceMethodCalls(classNode, methodNode, methodNode.instructions.getFirst(), null, from, to, bridge, depCollector, result, metrics);
+            }
+            if (metrics != null) metrics.record(DowngradeMetrics.METHOD_CALLS, start);
+        }
+
+        final DowngradingTransformer last = this.transformers[to - 1];
+        if (last.hasClassReplacements()) {
+            final long start = metrics != null ? System.nanoTime() : 0;
+            new ClassNodeRemapper(new Remapper() {
+                @Override
+                public String map(String internalName) {
+                    return last.mapClass(internalName, depCollector, result);
+                }
+            }, last.getClassReplacementNames()).remap(classNode, last, result);
+            if (metrics != null) metrics.record(last, DowngradeMetrics.CLASS_REMAPPING, start);
+        }
+
+        if (this.postTransforms[to - 1]) {
+            final long start = metrics != null ? System.nanoTime() : 0;
+            last.postTransform(classNode, result);
+            if (metrics != null) metrics.record(last, DowngradeMetrics.POST_TRANSFORM, start);
+        }
+
+        classNode.version = last.getTargetVersion();
+    }
+
+    private void replaceMethodCalls(final ClassNode classNode, final MethodNode methodNode, final AbstractInsnNode first, final AbstractInsnNode end, final int from, final int to, final int[] bridge, final RuntimeDepCollector depCollector, final DowngradeResult result, final DowngradeMetrics metrics) {
+        if (from >= to) {
+            return;
+        }
+
+        AbstractInsnNode insn = first;
+        while (insn != end) {
+            final AbstractInsnNode next = insn.getNext();
+            if (insn instanceof MethodInsnNode) {
+                final MethodInsnNode methodInsn = (MethodInsnNode) insn;
+
+                final StageReplacer replacer = this.getReplacer(methodInsn.owner, methodInsn.name, methodInsn.desc, from, to);
+                if (replacer != null) {
+                    final AbstractInsnNode previous = methodInsn.getPrevious();
+                    final int frameRequests = result.getUnattributedFrameRequests();
+                    final long start = metrics != null ? System.nanoTime() : 0;
+                    final InsnList replacement = replacer.replacer.getReplacement(classNode, methodNode, methodInsn.name, methodInsn.desc, depCollector, result);
+                    if (metrics != null) metrics.record(replacer.replacer, start);
+                    methodNode.instructions.insertBefore(methodInsn, replacement);
+                    methodNode.instructions.remove(methodInsn);
+
+                    result.markModified(methodNode, this.transformers[replacer.stage], replacer.replacer, frameRequests);
+                    result.incrementTransformerCount();
+
+                    // The replacement may use methods which are replaced by the following transformers
+                    final AbstractInsnNode replacementStart = previous == null ? methodNode.instructions.getFirst() : previous.getNext();
+                    this.replaceMethodCalls(classNode, methodNode, replacementStart, next, replacer.stage + 1, to, bridge, depCollector, result, metrics);
+                }
+            } else if (insn instanceof InvokeDynamicInsnNode) {
+                final InvokeDynamicInsnNode invokeDynamicInsn = (InvokeDynamicInsnNode) insn;
+
+                if (invokeDynamicInsn.bsm.getOwner().equals("java/lang/invoke/LambdaMetafactory") && invokeDynamicInsn.bsm.getName().equals("metafactory") && invokeDynamicInsn.bsm.getDesc().equals(Constants.METAFACTORY_DESC)) {
+                    for (int i = 0; i < invokeDynamicInsn.bsmArgs.length; i++) {
+                        final Object arg = invokeDynamicInsn.bsmArgs[i];
+                        if (!(arg instanceof Handle)) continue;
+                        final Handle handle = (Handle) arg;
+
+                        final StageReplacer replacer = this.getReplacer(handle.getOwner(), handle.getName(), handle.getDesc(), from, to);
+                        if (replacer != null) {
+                            final String desc = handle.getTag() == Opcodes.H_INVOKESTATIC || handle.getTag() == Opcodes.H_GETSTATIC || handle.getTag() == Opcodes.H_PUTSTATIC
+                                    ? handle.getDesc()
+                                    : "(L" + handle.getOwner() + ';' + handle.getDesc().substring(1);
+                            final MethodNode bridgeMethod = new MethodNode(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, BRIDGE_PREFIX + (bridge[0]++), desc, null, null);
+                            final Type[] argumentTypes = Type.getArgumentTypes(desc);
+                            for (int i1 = 0; i1 < argumentTypes.length; i1++) {
+                                bridgeMethod.instructions.add(new VarInsnNode(argumentTypes[i1].getOpcode(Opcodes.ILOAD), i1));
+                            }
+                            final int frameRequests = result.getUnattributedFrameRequests();
+                            final long start = metrics != null ? System.nanoTime() : 0;
+                            bridgeMethod.instructions.add(replacer.replacer.getReplacement(
+                                    classNode, bridgeMethod, handle.getName(), handle.getDesc(), depCollector, result
+                            ));
+                            if (metrics != null) metrics.record(replacer.replacer, start);
+                            bridgeMethod.instructions.add(new InsnNode(Type.getReturnType(handle.getDesc()).getOpcode(Opcodes.IRETURN)));
+                            classNode.methods.add(bridgeMethod);
+
+                            invokeDynamicInsn.bsmArgs[i] = new Handle(Opcodes.H_INVOKESTATIC, classNode.name, bridgeMethod.name, bridgeMethod.desc, (classNode.access & Opcodes.ACC_INTERFACE) != 0);
+                            result.markModified(bridgeMethod, this.transformers[replacer.stage], replacer.replacer, frameRequests);
+                            result.markModified(methodNode, this.transformers[replacer.stage], replacer.replacer);
+                            result.incrementTransformerCount();
+
+                            this.replaceMethodCalls(classNode, bridgeMethod, bridgeMethod.instructions.getFirst(), null, replacer.stage + 1, to, bridge, depCollector, result, metrics);
+                        }
+                    }
+                }
+            }
+            insn = next;
+        }
+    }
+
+    StageReplacer getReplacer(final String owner, final String name, final String desc, final int from) {
+        return this.getReplacer(owner, name, desc, from, this.transformers.length);
+    }
+
+    List<String> getClassReplacementNames() {
+        return this.classReplacementNames;
+    }
+
+    private StageReplacer getReplacer(final String owner, final String name, final String desc, final int from, final int to) {
+        final MethodIndex.Entry<StageReplacer> entry = this.methodCallReplacers.get(owner, name);
+        if (entry == null) return null;
+
+        final StageReplacer exact = this.firstInRange(entry.getExact(desc), from, to);
+        final StageReplacer wildcard = this.firstInRange(entry.getWildcard(), from, to);
+        if (exact == null) return wildcard;
+        if (wildcard == null) return exact;
+        return wildcard.stage < exact.stage ? wildcard : exact;
+    }
+
+    private StageReplacer firstInRange(StageReplacer replacer, final int from, final int to) {
+        while (replacer != null && replacer.stage < from) {
+            replacer = replacer.next;
+        }
+        return replacer != null && replacer.stage < to ? replacer : null;
+    }
+
+    static final class StageReplacer {
+        final int stage;
+        final MethodCallReplacer replacer;
+        private StageReplacer next;
+
+        private StageReplacer(final int stage, final MethodCallReplacer replacer) {
+            this.stage = stage;
+            this.replacer = replacer;
+        }
+    }
+
+}
@@ -53,6 +53,9 @@ public class Java11ToJava10 extends DowngradingTransformer {
         this.addMethodCallReplacer(Opcodes.INVOKEVIRTUAL, "java/util/zip/Inflater", "inflate", "(Ljava/nio/ByteBuffer;)I", new InflaterInflateMCR());
 
         this.addMethodCallReplacer(Opcodes.INVOKESTATIC, "java/io/OutputStream", "nullOutputStream", "()Ljava/io/OutputStream;", new OutputStreamNullOutputStreamMCR());
+
+        this.addHookTrigger("NestHost");
+        this.addHookTrigger("NestMembers");
     }
 
     @Override
@@ -19,11 +19,11 @@ package net.raphimc.javadowngrader.transformer.j10.methodcallreplacer;
 
 import net.raphimc.javadowngrader.RuntimeDepCollector;
 import net.raphimc.javadowngrader.transformer.DowngradeResult;
-import net.raphimc.javadowngrader.transformer.MethodCallReplacer;
+import net.raphimc.javadowngrader.transformer.LocalMethodCallReplacer;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.*;
 
-public class InflaterSetInputMCR implements MethodCallReplacer {
+public class InflaterSetInputMCR implements LocalMethodCallReplacer {
 
     @Override
     public InsnList getReplacement(ClassNode classNode, MethodNode method, String originalName, String originalDesc, RuntimeDepCollector depCollector, DowngradeResult result) {
@@ -19,11 +19,11 @@ package net.raphimc.javadowngrader.transformer.j10.methodcallreplacer;
 
 import net.raphimc.javadowngrader.RuntimeDepCollector;
 import net.raphimc.javadowngrader.transformer.DowngradeResult;
-import net.raphimc.javadowngrader.transformer.MethodCallReplacer;
+import net.raphimc.javadowngrader.transformer.LocalMethodCallReplacer;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.*;
 
-public class OptionalIsEmptyMCR implements MethodCallReplacer {
+public class OptionalIsEmptyMCR implements LocalMethodCallReplacer {
 
     private final String optionalClass;
 
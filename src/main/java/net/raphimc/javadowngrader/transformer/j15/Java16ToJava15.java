@@ -31,6 +31,8 @@ public class Java16ToJava15 extends DowngradingTransformer {
         this.addMethodCallReplacer(Opcodes.INVOKEINTERFACE, "java/util/stream/Stream", "toList", "()Ljava/util/List;", new StreamToListMCR());
 
         this.addClassReplacement("java/lang/Record", ClassReplacement.ofRenameOnly("java/lang/Object"));
+
+        this.addHookTrigger("java/lang/Record");
     }
 
     @Override
@@ -79,11 +79,14 @@ public class Java9ToJava8 extends DowngradingTransformer {
 
         this.addMethodCallReplacer(Opcodes.INVOKESTATIC, "java/lang/Runtime", "version", new RuntimeVersionMCR());
         this.addClassReplacementWithExtraDeps("java/lang/Runtime$Version", "java/lang/Runtime$VersionPattern");
+
+        this.addHookTrigger("java/lang/invoke/StringConcatFactory");
+        this.addHookTriggerAccess(Opcodes.ACC_INTERFACE);
     }
 
     @Override
     protected void preTransform(ClassNode classNode, DowngradeResult result) {
-        StringConcatFactoryReplacer.replace(classNode);
+        StringConcatFactoryReplacer.replace(classNode, this, result);
         this.makeInterfaceMethodsPublic(classNode);
     }
 
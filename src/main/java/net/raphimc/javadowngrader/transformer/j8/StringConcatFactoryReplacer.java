@@ -17,6 +17,8 @@
  */
 package net.raphimc.javadowngrader.transformer.j8;
 
+import net.raphimc.javadowngrader.transformer.DowngradeResult;
+import net.raphimc.javadowngrader.transformer.DowngradingTransformer;
 import net.raphimc.javadowngrader.util.ASMUtil;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
@@ -30,6 +32,10 @@ public class StringConcatFactoryReplacer {
     private static final char BSM_ARG_CONSTANT = '\u0002';
 
     public static void replace(final ClassNode classNode) {
+        replace(classNode, null, new DowngradeResult());
+    }
+
+    public static void replace(final ClassNode classNode, final DowngradingTransformer transformer, final DowngradeResult result) {
         for (MethodNode methodNode : classNode.methods) {
             for (AbstractInsnNode instruction : methodNode.instructions.toArray()) {
                 if (instruction.getOpcode() == Opcodes.INVOKEDYNAMIC) {
@@ -57,6 +63,7 @@ public class StringConcatFactoryReplacer {
                         final InsnList converted = convertStringConcatFactory(pattern, stackArgs, stackIndices, bsmArgs);
                         methodNode.instructions.insertBefore(insn, converted);
                         methodNode.instructions.remove(insn);
+                        result.markModified(methodNode, transformer, null);
                     }
                 }
             }
@@ -0,0 +1,190 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Scans the raw constant pool of a class file for references which require a class to be transformed.<br>
+ * This is a lot cheaper than parsing the class into a tree and allows classes which only need a version bump to skip
+ * the transformation entirely.
+ */
+public class ConstantPoolScanner {
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_FLOAT = 4;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+    private static final int CONSTANT_METHOD_TYPE = 16;
+    private static final int CONSTANT_DYNAMIC = 17;
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+    private static final int CONSTANT_MODULE = 19;
+    private static final int CONSTANT_PACKAGE = 20;
+
+    private static final Set<String> WILDCARD = Collections.emptySet();
+
+    private final Map<String, Map<String, Set<String>>> methods = new HashMap<>();
+    private final byte[][] utf8Patterns;
+    private final int accessMask;
+
+    /**
+     * @param methodKeys   The method keys in the format {@code owner;name} or {@code owner;name+descriptor}
+     * @param utf8Patterns The strings which require a transformation if any utf8 constant contains them
+     * @param accessMask   The class access flags which require a transformation
+     */
+    public ConstantPoolScanner(final Collection<String> methodKeys, final Collection<String> utf8Patterns, final int accessMask) {
+        for (String key : methodKeys) {
+            final int ownerEnd = key.indexOf(';');
+            final int descStart = key.indexOf('(', ownerEnd);
+            final Map<String, Set<String>> names = this.methods.computeIfAbsent(key.substring(0, ownerEnd), k -> new HashMap<>());
+            if (descStart == -1) {
+                names.put(key.substring(ownerEnd + 1), WILDCARD);
+            } else {
+                final String name = key.substring(ownerEnd + 1, descStart);
+                final Set<String> descriptors = names.computeIfAbsent(name, k -> new HashSet<>());
+                if (descriptors != WILDCARD) {
+                    descriptors.add(key.substring(descStart));
+                }
+            }
+        }
+        this.utf8Patterns = utf8Patterns.stream().distinct().map(s -> s.getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new);
+        this.accessMask = accessMask;
+    }
+
+    /**
+     * Checks if the given class file references anything this scanner was created for
+     *
+     * @param bytecode The class file
+     * @return If the class needs to be transformed
+     */
+    public boolean matches(final byte[] bytecode) {
+        final int count = readUnsignedShort(bytecode, 8);
+        final int[] offsets = new int[count];
+        int offset = 10;
+        for (int i = 1; i < count; i++) {
+            offsets[i] = offset;
+            final int tag = bytecode[offset] & 0xFF;
+            switch (tag) {
+                case CONSTANT_UTF8:
+                    final int length = readUnsignedShort(bytecode, offset + 1);
+                    if (this.containsPattern(bytecode, offset + 3, length)) {
+                        return true;
+                    }
+                    offset += 3 + length;
+                    break;
+                case CONSTANT_CLASS:
+                case CONSTANT_STRING:
+                case CONSTANT_METHOD_TYPE:
+                case CONSTANT_MODULE:
+                case CONSTANT_PACKAGE:
+                    offset += 3;
+                    break;
+                case CONSTANT_METHOD_HANDLE:
+                    offset += 4;
+                    break;
+                case CONSTANT_INTEGER:
+                case CONSTANT_FLOAT:
+                case CONSTANT_FIELDREF:
+                case CONSTANT_METHODREF:
+                case CONSTANT_INTERFACE_METHODREF:
+                case CONSTANT_NAME_AND_TYPE:
+                case CONSTANT_DYNAMIC:
+                case CONSTANT_INVOKE_DYNAMIC:
+                    offset += 5;
+                    break;
+                case CONSTANT_LONG:
+                case CONSTANT_DOUBLE:
+                    offset += 9;
+                    i++;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown constant pool tag " + tag);
+            }
+        }
+        if ((readUnsignedShort(bytecode, offset) & this.accessMask) != 0) {
+            return true;
+        }
+
+        if (!this.methods.isEmpty()) {
+            for (int i = 1; i < count; i++) {
+                final int entry = offsets[i];
+                if (entry == 0) continue;
+                final int tag = bytecode[entry] & 0xFF;
+                if (tag != CONSTANT_METHODREF && tag != CONSTANT_INTERFACE_METHODREF) continue;
+
+                final int classEntry = offsets[readUnsignedShort(bytecode, entry + 1)];
+                final Map<String, Set<String>> names = this.methods.get(readUtf8(bytecode, offsets, readUnsignedShort(bytecode, classEntry + 1)));
+                if (names == null) continue;
+                final int nameAndTypeEntry = offsets[readUnsignedShort(bytecode, entry + 3)];
+                final Set<String> descriptors = names.get(readUtf8(bytecode, offsets, readUnsignedShort(bytecode, nameAndTypeEntry + 1)));
+                if (descriptors == null) continue;
+                if (descriptors == WILDCARD || descriptors.contains(readUtf8(bytecode, offsets, readUnsignedShort(bytecode, nameAndTypeEntry + 3)))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets the class file version of the given class file in place
+     *
+     * @param bytecode The class file
+     * @param version  The new class file version (minor &lt;&lt; 16 | major)
+     */
+    public static void setVersion(final byte[] bytecode, final int version) {
+        bytecode[4] = (byte) (version >>> 24);
+        bytecode[5] = (byte) (version >>> 16);
+        bytecode[6] = (byte) (version >>> 8);
+        bytecode[7] = (byte) version;
+    }
+
+    private boolean containsPattern(final byte[] bytecode, final int start, final int length) {
+        for (byte[] pattern : this.utf8Patterns) {
+            final int last = start + length - pattern.length;
+            outer:
+            for (int i = start; i <= last; i++) {
+                for (int j = 0; j < pattern.length; j++) {
+                    if (bytecode[i + j] != pattern[j]) continue outer;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String readUtf8(final byte[] bytecode, final int[] offsets, final int index) {
+        final int offset = offsets[index];
+        // All keys are ascii so a non-ascii constant can never match and does not need to be decoded properly
+        return new String(bytecode, offset + 3, readUnsignedShort(bytecode, offset + 1), StandardCharsets.ISO_8859_1);
+    }
+
+    private static int readUnsignedShort(final byte[] bytecode, final int offset) {
+        return (bytecode[offset] & 0xFF) << 8 | (bytecode[offset + 1] & 0xFF);
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.standalone;
+
+import net.raphimc.javadowngrader.util.JavaVersion;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * All settings of a single jar conversion. Can be sent to a {@link DowngradeDaemon}.
+ */
+class ConversionJob {
+
+    private final File inputFile;
+    private final File outputFile;
+    private final JavaVersion targetVersion;
+    private final List<File> libraryPath;
+    private final int threadCount;
+    private final boolean compiledChain;
+    private final int compressionLevel;
+    private final long bufferSize;
+    private final File cacheDir;
+    private final long cacheSize;
+
+    ConversionJob(
+            final File inputFile,
+            final File outputFile,
+            final JavaVersion targetVersion,
+            final List<File> libraryPath,
+            final int threadCount,
+            final boolean compiledChain,
+            final int compressionLevel,
+            final long bufferSize,
+            final File cacheDir,
+            final long cacheSize
+    ) {
+        this.inputFile = inputFile;
+        this.outputFile = outputFile;
+        this.targetVersion = targetVersion;
+        this.libraryPath = libraryPath;
+        this.threadCount = threadCount;
+        this.compiledChain = compiledChain;
+        this.compressionLevel = compressionLevel;
+        this.bufferSize = bufferSize;
+        this.cacheDir = cacheDir;
+        this.cacheSize = cacheSize;
+    }
+
+    public File getInputFile() {
+        return this.inputFile;
+    }
+
+    public File getOutputFile() {
+        return this.outputFile;
+    }
+
+    public JavaVersion getTargetVersion() {
+        return this.targetVersion;
+    }
+
+    public List<File> getLibraryPath() {
+        return this.libraryPath;
+    }
+
+    public int getThreadCount() {
+        return this.threadCount;
+    }
+
+    public boolean isCompiledChain() {
+        return this.compiledChain;
+    }
+
+    public int getCompressionLevel() {
+        return this.compressionLevel;
+    }
+
+    public long getBufferSize() {
+        return this.bufferSize;
+    }
+
+    public File getCacheDir() {
+        return this.cacheDir;
+    }
+
+    public long getCacheSize() {
+        return this.cacheSize;
+    }
+
+    void write(final DataOutputStream out) throws IOException {
+        out.writeUTF(this.inputFile.getAbsolutePath());
+        out.writeUTF(this.outputFile.getAbsolutePath());
+        out.writeUTF(this.targetVersion.name());
+        out.writeInt(this.libraryPath.size());
+        for (File library : this.libraryPath) {
+            out.writeUTF(library.getAbsolutePath());
+        }
+        out.writeInt(this.threadCount);
+        out.writeBoolean(this.compiledChain);
+        out.writeInt(this.compressionLevel);
+        out.writeLong(this.bufferSize);
+        out.writeUTF(this.cacheDir != null ? this.cacheDir.getAbsolutePath() : "");
+        out.writeLong(this.cacheSize);
+    }
+
+    static ConversionJob read(final DataInputStream in) throws IOException {
+        final File inputFile = new File(in.readUTF());
+        final File outputFile = new File(in.readUTF());
+        final JavaVersion targetVersion = JavaVersion.valueOf(in.readUTF());
+        final int libraryCount = in.readInt();
+        final List<File> libraryPath = new ArrayList<>(libraryCount);
+        for (int i = 0; i < libraryCount; i++) {
+            libraryPath.add(new File(in.readUTF()));
+        }
+        final int threadCount = in.readInt();
+        final boolean compiledChain = in.readBoolean();
+        final int compressionLevel = in.readInt();
+        final long bufferSize = in.readLong();
+        final String cacheDir = in.readUTF();
+        final long cacheSize = in.readLong();
+        return new ConversionJob(inputFile, outputFile, targetVersion, libraryPath, threadCount, compiledChain, compressionLevel, bufferSize, cacheDir.isEmpty() ? null : new File(cacheDir), cacheSize);
+    }
+
+}
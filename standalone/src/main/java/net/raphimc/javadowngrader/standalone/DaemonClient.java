@@ -0,0 +1,88 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.standalone;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Sends conversion jobs to a running {@link DowngradeDaemon}.
+ */
+class DaemonClient {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DaemonClient.class);
+    private static final int CONNECT_TIMEOUT = 1000;
+
+    /**
+     * Runs the job in the daemon.
+     *
+     * @param directory The directory the daemon connection info is stored in
+     * @param job       The job to run
+     * @return false if no daemon is running and the job should be run in-process
+     * @throws IOException If the daemon failed to run the job
+     */
+    static boolean run(final Path directory, final ConversionJob job) throws IOException {
+        final Path infoFile = directory.resolve(DowngradeDaemon.INFO_FILE);
+        if (!Files.isRegularFile(infoFile)) {
+            LOGGER.info("No daemon running, downgrading in-process");
+            return false;
+        }
+        final Properties properties = new Properties();
+        try (InputStream is = Files.newInputStream(infoFile)) {
+            properties.load(is);
+        }
+
+        final Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(properties.getProperty("port"))), CONNECT_TIMEOUT);
+        } catch (IOException | IllegalArgumentException e) {
+            socket.close();
+            LOGGER.info("Daemon is not reachable, downgrading in-process");
+            return false;
+        }
+        try (Socket s = socket;
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()))) {
+            LOGGER.info("Sending job to daemon");
+            out.writeInt(DowngradeDaemon.PROTOCOL_VERSION);
+            out.writeUTF(properties.getProperty("token", ""));
+            job.write(out);
+            out.flush();
+
+            final int status = in.readInt();
+            final String message = in.readUTF();
+            if (status == DowngradeDaemon.STATUS_REJECTED) {
+                LOGGER.info("Daemon rejected the job, downgrading in-process");
+                return false;
+            } else if (status != DowngradeDaemon.STATUS_SUCCESS) {
+                throw new IOException("Daemon failed to run the job: " + message);
+            }
+            LOGGER.info(message);
+            return true;
+        }
+    }
+
+}
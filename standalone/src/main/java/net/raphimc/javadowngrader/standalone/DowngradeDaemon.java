@@ -0,0 +1,158 @@
+/*
+ * This file is part of JavaDowngrader - https://github.com/RaphiMC/JavaDowngrader
+ * Copyright (C) 2023 RK_01/RaphiMC and contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.raphimc.javadowngrader.standalone;
+
+import net.lenni0451.classtransform.additionalclassprovider.LazyFileClassProvider;
+import net.lenni0451.classtransform.utils.tree.BasicClassProvider;
+import net.lenni0451.classtransform.utils.tree.IClassProvider;
+import net.raphimc.javadowngrader.JavaDowngrader;
+import net.raphimc.javadowngrader.util.JavaVersion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A long-lived process which runs conversion jobs sent by a {@link DaemonClient}.<br>
+ * The JIT, the compiled transformer chains and the class providers of recently used library sets stay warm between jobs.
+ */
+class DowngradeDaemon {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DowngradeDaemon.class);
+    static final int PROTOCOL_VERSION = 1;
+    static final String INFO_FILE = "daemon.properties";
+    static final int STATUS_SUCCESS = 0;
+    static final int STATUS_REJECTED = 1;
+    static final int STATUS_FAILED = 2;
+    private static final int MAX_LIBRARY_PROVIDERS = 8;
+
+    private final String token;
+    private final Map<List<String>, IClassProvider> libraryProviders = new LinkedHashMap<List<String>, IClassProvider>(16, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<String>, IClassProvider> eldest) {
+            return this.size() > MAX_LIBRARY_PROVIDERS;
+        }
+    };
+
+    private DowngradeDaemon(final String token) {
+        this.token = token;
+    }
+
+    static void run(final Path directory) throws IOException {
+        final byte[] tokenBytes = new byte[32];
+        new SecureRandom().nextBytes(tokenBytes);
+        final StringBuilder token = new StringBuilder();
+        for (byte b : tokenBytes) {
+            token.append(String.format("%02x", b));
+        }
+        final DowngradeDaemon daemon = new DowngradeDaemon(token.toString());
+
+        for (JavaVersion version : JavaVersion.values()) {
+            JavaDowngrader.compile(version.getVersion());
+        }
+
+        try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            final Path infoFile = directory.resolve(INFO_FILE);
+            writeInfo(directory, infoFile, serverSocket.getLocalPort(), daemon.token);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Files.deleteIfExists(infoFile);
+                } catch (IOException ignored) {
+                }
+            }));
+            LOGGER.info("Daemon listening on port {}", serverSocket.getLocalPort());
+
+            final ExecutorService jobs = Executors.newCachedThreadPool();
+            while (true) {
+                final Socket socket = serverSocket.accept();
+                jobs.execute(() -> daemon.handle(socket));
+            }
+        }
+    }
+
+    private void handle(final Socket socket) {
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            if (in.readInt() != PROTOCOL_VERSION || !this.token.equals(in.readUTF())) {
+                out.writeInt(STATUS_REJECTED);
+                out.writeUTF("Rejected client");
+                return;
+            }
+
+            final ConversionJob job = ConversionJob.read(in);
+            final long start = System.nanoTime();
+            try {
+                Main.doConversion(job, this::getLibraryProvider, false);
+                out.writeInt(STATUS_SUCCESS);
+                out.writeUTF("Downgraded " + job.getInputFile() + " in the daemon in " + Main.formatDuration(System.nanoTime() - start));
+            } catch (Throwable e) {
+                LOGGER.error("Error while converting {}", job.getInputFile(), e);
+                final StringWriter writer = new StringWriter();
+                e.printStackTrace(new PrintWriter(writer));
+                final String stackTrace = writer.toString();
+                out.writeInt(STATUS_FAILED);
+                // writeUTF is limited to 64 KiB
+                out.writeUTF(stackTrace.length() > 16384 ? stackTrace.substring(0, 16384) : stackTrace);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Lost connection to client", e);
+        }
+    }
+
+    private synchronized IClassProvider getLibraryProvider(final List<File> libraries) {
+        // Libraries are identified by their path and last modification so changed jars are indexed again
+        final List<String> key = new ArrayList<>(libraries.size());
+        for (File library : libraries) {
+            key.add(library.getAbsolutePath() + ';' + library.lastModified() + ';' + library.length());
+        }
+        return this.libraryProviders.computeIfAbsent(key, k -> new LazyFileClassProvider(libraries, new BasicClassProvider()));
+    }
+
+    private static void writeInfo(final Path directory, final Path infoFile, final int port, final String token) throws IOException {
+        Files.createDirectories(directory);
+        final Properties properties = new Properties();
+        properties.setProperty("port", String.valueOf(port));
+        properties.setProperty("token", token);
+
+        final Path temp = Files.createTempFile(directory, INFO_FILE, ".tmp");
+        try {
+            try {
+                // The token protects the daemon from other local users
+                Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException ignored) {
+            }
+            try (OutputStream os = Files.newOutputStream(temp)) {
+                properties.store(os, "JavaDowngrader daemon");
+            }
+            Files.move(temp, infoFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+}
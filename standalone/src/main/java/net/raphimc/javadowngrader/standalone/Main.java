@@ -22,10 +22,17 @@ import me.tongfei.progressbar.ProgressBarBuilder;
 import me.tongfei.progressbar.ProgressBarStyle;
 import net.lenni0451.classtransform.TransformerManager;
 import net.lenni0451.classtransform.additionalclassprovider.LazyFileClassProvider;
-import net.lenni0451.classtransform.additionalclassprovider.PathClassProvider;
 import net.lenni0451.classtransform.utils.tree.BasicClassProvider;
+import net.lenni0451.classtransform.utils.tree.IClassProvider;
+import net.raphimc.javadowngrader.DowngradeMetrics;
+import net.raphimc.javadowngrader.JavaDowngrader;
+import net.raphimc.javadowngrader.impl.classtransform.DowngradeCache;
 import net.raphimc.javadowngrader.impl.classtransform.JavaDowngraderTransformer;
+import net.raphimc.javadowngrader.impl.classtransform.classprovider.EmptyClassProvider;
+import net.raphimc.javadowngrader.impl.classtransform.classprovider.ZipArchiveClassProvider;
 import net.raphimc.javadowngrader.impl.classtransform.util.ClassNameUtil;
+import net.raphimc.javadowngrader.impl.classtransform.util.ZipArchive;
+import net.raphimc.javadowngrader.impl.classtransform.util.ZipArchiveWriter;
 import net.raphimc.javadowngrader.runtime.RuntimeRoot;
 import net.raphimc.javadowngrader.standalone.progress.MultiThreadedProgressBar;
 import net.raphimc.javadowngrader.standalone.util.GeneralUtil;
@@ -37,19 +44,16 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
-import java.net.URI;
-import java.nio.file.FileSystem;
-import java.nio.file.FileSystems;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.List;
-import java.util.Locale;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.Deflater;
 
 import static java.util.Arrays.asList;
 
@@ -59,19 +63,25 @@ public class Main {
     public static void main(String[] args) throws Throwable {
         final OptionParser parser = new OptionParser();
         final OptionSpec<Void> help = parser.acceptsAll(asList("help", "h", "?"), "Get a list of all arguments").forHelp();
+        final OptionSpec<Void> daemon = parser.acceptsAll(asList("daemon"), "Start a daemon which keeps the downgrader warm and runs jobs of --use_daemon invocations");
+        final OptionSpec<Void> useDaemon = parser.acceptsAll(asList("use_daemon"), "Run the job in a running daemon if there is one, otherwise downgrade in-process");
+        final OptionSpec<File> daemonDir = parser.acceptsAll(asList("daemon_dir"), "The directory the daemon connection info is stored in")
+                .withRequiredArg()
+                .ofType(File.class)
+                .defaultsTo(new File(System.getProperty("user.home"), ".javadowngrader"));
 
         final OptionSpec<File> inputLocation = parser.acceptsAll(asList("input_file", "input", "i"), "The location of the input jar file")
+                .requiredUnless(daemon)
                 .withRequiredArg()
-                .ofType(File.class)
-                .required();
+                .ofType(File.class);
         final OptionSpec<File> outputLocation = parser.acceptsAll(asList("output_file", "output", "o"), "The location of the output jar file")
+                .requiredUnless(daemon)
                 .withRequiredArg()
-                .ofType(File.class)
-                .required();
+                .ofType(File.class);
         final OptionSpec<JavaVersion> version = parser.acceptsAll(asList("target_version", "version", "v"), "The target/output java version")
+                .requiredUnless(daemon)
                 .withRequiredArg()
-                .withValuesConvertedBy(new JavaVersionEnumConverter())
-                .required();
+                .withValuesConvertedBy(new JavaVersionEnumConverter());
         final OptionSpec<List<File>> libraryPath = parser.acceptsAll(asList("library_path", "library", "l"), "Additional libraries to add to the classpath (required for stack frames)")
                 .withRequiredArg()
                 .withValuesConvertedBy(new PathConverter());
@@ -79,6 +89,25 @@ public class Main {
                 .withRequiredArg()
                 .ofType(Integer.class)
                 .defaultsTo(Math.min(Runtime.getRuntime().availableProcessors(), 255));
+        final OptionSpec<Void> compiledChain = parser.acceptsAll(asList("compiled_chain", "compiled", "c"), "Fuse all transformers into as few passes over each class as possible");
+        final OptionSpec<Integer> compressionLevel = parser.acceptsAll(asList("compression_level", "level"), "The deflate level for the output jar (0-9, 0 stores the entries uncompressed, -1 uses the default level)")
+                .withRequiredArg()
+                .ofType(Integer.class)
+                .defaultsTo(Deflater.DEFAULT_COMPRESSION);
+        final OptionSpec<Integer> bufferSize = parser.acceptsAll(asList("buffer_size"), "The maximum amount of entry data in megabytes which is buffered between reading and writing the jar")
+                .withRequiredArg()
+                .ofType(Integer.class)
+                .defaultsTo(64);
+        final OptionSpec<File> cacheDir = parser.acceptsAll(asList("cache_dir", "cache"), "A directory to cache downgraded classes in across runs")
+                .withRequiredArg()
+                .ofType(File.class);
+        final OptionSpec<Long> cacheSize = parser.acceptsAll(asList("cache_size"), "The maximum size of the cache directory in megabytes")
+                .withRequiredArg()
+                .ofType(Long.class)
+                .defaultsTo(1024L);
+        final OptionSpec<File> metricsFile = parser.acceptsAll(asList("metrics_file", "metrics"), "Write the time spent in each downgrading stage and replacer as json to this file")
+                .withRequiredArg()
+                .ofType(File.class);
 
         final OptionSet options;
         try {
@@ -93,6 +122,10 @@ public class Main {
             parser.printHelpOn(System.out);
             System.exit(1);
         }
+        if (options.has(daemon)) {
+            DowngradeDaemon.run(options.valueOf(daemonDir).toPath());
+            return;
+        }
 
         final File inputFile = options.valueOf(inputLocation);
         if (!inputFile.isFile()) {
@@ -113,46 +146,55 @@ public class Main {
                 System.exit(1);
             }
         }
+        if (outputFile.isFile() && !outputFile.canWrite()) {
+            LOGGER.error("Cannot write to {}", outputFile);
+            System.exit(1);
+        }
 
+        final ConversionJob job = new ConversionJob(
+                inputFile.getAbsoluteFile(), outputFile.getAbsoluteFile(),
+                options.valueOf(version),
+                GeneralUtil.flatten(options.valuesOf(libraryPath)),
+                Math.min(options.valueOf(threadCount), 255),
+                options.has(compiledChain),
+                options.valueOf(compressionLevel),
+                options.valueOf(bufferSize) * 1024L * 1024,
+                options.valueOf(cacheDir),
+                options.valueOf(cacheSize) * 1024 * 1024
+        );
+        final DowngradeMetrics metrics = options.has(metricsFile) ? new DowngradeMetrics() : null;
+        if (metrics != null && options.has(useDaemon)) {
+            // The daemon runs multiple jobs at once, so the metrics are only collected in-process
+            LOGGER.info("Collecting metrics, downgrading in-process instead of in the daemon");
+        }
         try {
             final long start = System.nanoTime();
-            doConversion(
-                    inputFile, outputFile,
-                    options.valueOf(version),
-                    GeneralUtil.flatten(options.valuesOf(libraryPath)),
-                    Math.min(options.valueOf(threadCount), 255)
-            );
+            JavaDowngrader.setMetrics(metrics);
+            if (metrics != null || !options.has(useDaemon) || !DaemonClient.run(options.valueOf(daemonDir).toPath(), job)) {
+                doConversion(job, libraries -> new LazyFileClassProvider(libraries, new BasicClassProvider()), true);
+            }
             final long end = System.nanoTime();
-            LOGGER.info(
-                    "Done in {}.",
-                    Duration.ofNanos(end - start)
-                            .toString()
-                            .substring(2)
-                            .replaceAll("(\\d[HMS])(?!$)", "$1 ")
-                            .toLowerCase(Locale.ROOT)
-            );
+            LOGGER.info("Done in {}.", formatDuration(end - start));
+            if (metrics != null) {
+                final File file = options.valueOf(metricsFile);
+                Files.write(file.toPath(), metrics.toJson().getBytes(StandardCharsets.UTF_8));
+                LOGGER.info("Wrote metrics to {}", file);
+            }
         } catch (Throwable e) {
             LOGGER.error("Error while converting jar file. Please report this issue on the JavaDowngrader GitHub page", e);
             System.exit(1);
         }
     }
 
-    private static void doConversion(
-            final File inputFile,
-            final File outputFile,
-            final JavaVersion targetVersion,
-            List<File> libraryPath,
-            int threadCount
-    ) throws Throwable {
-        LOGGER.info("Downgrading {} to Java {}", inputFile, targetVersion.getName());
-        if (outputFile.isFile() && !outputFile.canWrite()) {
-            LOGGER.error("Cannot write to {}", outputFile);
-            System.exit(1);
-        }
-        if (Files.deleteIfExists(outputFile.toPath())) {
-            LOGGER.info("Deleted old {}", outputFile);
-        }
+    static String formatDuration(final long nanos) {
+        return Duration.ofNanos(nanos)
+                .toString()
+                .substring(2)
+                .replaceAll("(\\d[HMS])(?!$)", "$1 ")
+                .toLowerCase(Locale.ROOT);
+    }
 
+    static List<File> resolveLibraries(final List<File> libraryPath) {
         try (Stream<File> stream = libraryPath.stream()
                 .flatMap(f -> {
                     if (f.isFile()) {
@@ -170,86 +212,116 @@ public class Main {
                     }
                 })
         ) {
-            libraryPath = stream.collect(Collectors.toList());
+            return stream.collect(Collectors.toList());
         }
+    }
 
-        LOGGER.info("Opening source JAR");
-        try (FileSystem inFs = FileSystems.newFileSystem(inputFile.toPath(), null)) {
-            final Path inRoot = inFs.getRootDirectories().iterator().next();
+    static void doConversion(final ConversionJob job, final Function<List<File>, IClassProvider> libraryProviderFactory, final boolean showProgress) throws Throwable {
+        final File inputFile = job.getInputFile();
+        final File outputFile = job.getOutputFile();
+        final JavaVersion targetVersion = job.getTargetVersion();
+        final int threadCount = job.getThreadCount();
+        final File cacheDir = job.getCacheDir();
+        LOGGER.info("Downgrading {} to Java {}", inputFile, targetVersion.getName());
+        if (Files.deleteIfExists(outputFile.toPath())) {
+            LOGGER.info("Deleted old {}", outputFile);
+        }
+        final List<File> libraryPath = resolveLibraries(job.getLibraryPath());
 
+        LOGGER.info("Opening source JAR");
+        try (ZipArchive inArchive = new ZipArchive(inputFile.toPath())) {
             final Collection<String> runtimeDeps = Collections.newSetFromMap(new ConcurrentHashMap<>());
             final TransformerManager transformerManager = new TransformerManager(
-                    new PathClassProvider(inRoot, new LazyFileClassProvider(libraryPath, new BasicClassProvider()))
+                    new ZipArchiveClassProvider(inArchive, libraryProviderFactory.apply(libraryPath))
             );
-            transformerManager.addBytecodeTransformer(
-                    JavaDowngraderTransformer.builder(transformerManager)
-                            .targetVersion(targetVersion.getVersion())
-                            .classFilter(c -> Files.isRegularFile(inRoot.resolve(ClassNameUtil.toClassFilename(c))))
-                            .depCollector(runtimeDeps::add)
-                            .build()
-            );
-
-            try (FileSystem outFs = FileSystems.newFileSystem(new URI("jar:" + outputFile.toURI()), Collections.singletonMap("create", "true"))) {
-                final Path outRoot = outFs.getRootDirectories().iterator().next();
+            final JavaDowngraderTransformer.Builder builder = JavaDowngraderTransformer.builder(transformerManager)
+                    .targetVersion(targetVersion.getVersion())
+                    .classFilter(c -> inArchive.getEntry(ClassNameUtil.toClassFilename(c)) != null)
+                    .depCollector(runtimeDeps::add)
+                    .compiledChain(job.isCompiledChain());
+            if (cacheDir != null) {
+                LOGGER.info("Using class cache in {}", cacheDir);
+                builder.cache(new DowngradeCache(cacheDir.toPath(), job.getCacheSize()), DowngradeCache.classpathHash(libraryPath, new ZipArchiveClassProvider(inArchive, new EmptyClassProvider()).getAllClasses()));
+            }
+            final JavaDowngraderTransformer downgraderTransformer = builder.build();
+            transformerManager.addBytecodeTransformer(downgraderTransformer);
 
+            try (ZipArchiveWriter writer = new ZipArchiveWriter(outputFile.toPath(), job.getCompressionLevel())) {
                 LOGGER.info("Downgrading classes with {} thread(s)", threadCount);
+                final List<ZipArchive.Entry> entries = inArchive.getEntries();
                 final ExecutorService threadPool = Executors.newFixedThreadPool(threadCount);
-                final List<Callable<Void>> tasks;
-                final MultiThreadedProgressBar[] pb = new MultiThreadedProgressBar[1];
-                try (Stream<Path> stream = Files.walk(inRoot)) {
-                    tasks = stream.map(path -> (Callable<Void>) () -> {
-                        final String relative = ClassNameUtil.slashName(inRoot.relativize(path));
-                        pb[0].setThreadTask(relative);
-                        final Path dest = outRoot.resolve(relative);
-                        if (Files.isDirectory(path)) {
-                            Files.createDirectories(dest);
-                            pb[0].step();
-                            return null;
-                        }
-                        final Path parent = dest.getParent();
-                        if (parent != null) {
-                            Files.createDirectories(parent);
+                try (MultiThreadedProgressBar pb = !showProgress ? MultiThreadedProgressBar.NONE : MultiThreadedProgressBar.create(
+                        new ProgressBarBuilder()
+                                .setTaskName("Downgrading")
+                                .setStyle(ProgressBarStyle.ASCII)
+                                .setInitialMax(entries.size())
+                                .setUpdateIntervalMillis(100)
+                )) {
+                    // Entries are read and transformed in parallel but written in the order of the input jar
+                    // The entries in flight are bounded so the heap usage doesn't depend on the size of the jar
+                    // Unchanged entries are copied without decompressing and recompressing them
+                    final int maxPendingEntries = threadCount * 4;
+                    final Deque<Future<EntryWriter>> pending = new ArrayDeque<>(maxPendingEntries);
+                    long pendingBytes = 0;
+                    int written = 0;
+                    for (final ZipArchive.Entry entry : entries) {
+                        while (!pending.isEmpty() && (pending.size() >= maxPendingEntries || pendingBytes + getBufferedSize(entry) > job.getBufferSize())) {
+                            writeEntry(pending.poll(), writer);
+                            pendingBytes -= getBufferedSize(entries.get(written++));
+                            pb.step();
                         }
-                        if (!relative.endsWith(".class") || relative.contains("META-INF/versions/")) {
-                            Files.copy(path, dest);
-                            pb[0].step();
-                            return null;
-                        }
-                        final String className = ClassNameUtil.toClassName(relative);
-                        final byte[] bytecode = Files.readAllBytes(path);
-                        byte[] result = null;
-                        try {
-                            result = transformerManager.transform(className, bytecode);
-                        } catch (Exception e) {
-                            LOGGER.error("Failed to transform {}", className, e);
-                        }
-                        Files.write(dest, result != null ? result : bytecode);
+                        pendingBytes += getBufferedSize(entry);
+                        pending.add(threadPool.submit(() -> {
+                            final String name = entry.getName();
+                            final byte[] raw = inArchive.readRaw(entry);
+                            if (entry.isDirectory() || !name.endsWith(".class") || name.contains("META-INF/versions/")) {
+                                return out -> out.writeRaw(entry, raw);
+                            }
+                            final byte[] header = ZipArchive.decompress(entry, raw, 8);
+                            if (header.length == 8 && ((header[6] & 0xFF) << 8 | header[7] & 0xFF) <= targetVersion.getVersion()) {
+                                return out -> out.writeRaw(entry, raw);
+                            }
 
-                        pb[0].step();
-                        return null;
-                    }).collect(Collectors.toList());
-                }
-                try {
-                    pb[0] = MultiThreadedProgressBar.create(
-                            new ProgressBarBuilder()
-                                    .setTaskName("Downgrading")
-                                    .setStyle(ProgressBarStyle.ASCII)
-                                    .setInitialMax(tasks.size())
-                                    .setUpdateIntervalMillis(100)
-                    );
-                    threadPool.invokeAll(tasks);
-                } finally {
-                    if (pb[0] != null) {
-                        pb[0].close();
+                            pb.setThreadTask(name);
+                            final String className = ClassNameUtil.toClassName(name);
+                            final byte[] bytecode = ZipArchive.decompress(entry, raw, Integer.MAX_VALUE);
+                            byte[] result = null;
+                            try {
+                                result = transformerManager.transform(className, bytecode);
+                            } catch (Exception e) {
+                                LOGGER.error("Failed to transform {}", className, e);
+                            }
+                            if (result == null) {
+                                return out -> out.writeRaw(entry, raw);
+                            }
+                            // Compress on the worker thread so only the final append is serialized
+                            final ZipArchiveWriter.CompressedEntry compressed = writer.compress(entry, result);
+                            return out -> out.write(compressed);
+                        }));
+                    }
+                    while (!pending.isEmpty()) {
+                        writeEntry(pending.poll(), writer);
+                        pb.step();
                     }
+                } finally {
+                    threadPool.shutdownNow();
                 }
-                threadPool.shutdown();
                 if (!threadPool.awaitTermination(1000, TimeUnit.MILLISECONDS)) {
                     throw new IllegalStateException("Thread pool didn't shutdown correctly");
                 }
 
+                LOGGER.info(
+                        "Transformed {} class(es) ({} without a class tree), {} class(es) only needed a version change",
+                        downgraderTransformer.getStats().getTransformedClasses(),
+                        downgraderTransformer.getStats().getStreamedClasses(),
+                        downgraderTransformer.getStats().getVersionOnlyClasses()
+                );
+                if (cacheDir != null) {
+                    LOGGER.info("Loaded {} class(es) from the cache", downgraderTransformer.getStats().getCachedClasses());
+                }
+
                 LOGGER.info("Copying {} runtime class(es)", runtimeDeps.size());
-                for (final String runtimeDep : runtimeDeps) {
+                for (final String runtimeDep : new TreeSet<>(runtimeDeps)) {
                     final String classPath = runtimeDep.concat(".class");
                     LOGGER.debug("Copying {}", classPath);
                     try (InputStream is = RuntimeRoot.class.getResourceAsStream("/" + classPath)) {
@@ -257,12 +329,7 @@ public class Main {
                             LOGGER.warn("Runtime class '{}' not found! Skipping.", runtimeDep);
                             continue;
                         }
-                        final Path dest = outRoot.resolve(classPath);
-                        final Path parent = dest.getParent();
-                        if (parent != null) {
-                            Files.createDirectories(parent);
-                        }
-                        Files.copy(is, dest);
+                        writer.write(classPath, is);
                     }
                 }
                 LOGGER.info("Writing final JAR");
@@ -270,4 +337,21 @@ public class Main {
         }
     }
 
+    private static long getBufferedSize(final ZipArchive.Entry entry) {
+        return entry.getCompressedSize() + entry.getSize();
+    }
+
+    private static void writeEntry(final Future<EntryWriter> future, final ZipArchiveWriter writer) throws Throwable {
+        try {
+            future.get().write(writer);
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    @FunctionalInterface
+    private interface EntryWriter {
+        void write(final ZipArchiveWriter writer) throws IOException;
+    }
+
 }
@@ -20,6 +20,20 @@ package net.raphimc.javadowngrader.standalone.progress;
 import me.tongfei.progressbar.ProgressBarBuilder;
 
 public interface MultiThreadedProgressBar extends AutoCloseable {
+    MultiThreadedProgressBar NONE = new MultiThreadedProgressBar() {
+        @Override
+        public void step() {
+        }
+
+        @Override
+        public void setThreadTask(String task) {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
     void step();
 
     void setThreadTask(String task);